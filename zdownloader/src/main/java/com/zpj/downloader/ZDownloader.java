@@ -95,6 +95,18 @@ public class ZDownloader {
         return DownloadManagerImpl.getInstance().getMission(res);
     }
 
+    /**
+     * 批量下载，适合导入播放列表、安装包清单等大量链接
+     * @return 与去重后的链接一一对应的任务
+     */
+    public static List<DownloadMission> download(List<String> urls) {
+        return DownloadManagerImpl.getInstance().startMissions(urls);
+    }
+
+    public static List<DownloadMission> download(List<String> urls, MissionConfig options) {
+        return DownloadManagerImpl.getInstance().startMissions(urls, options);
+    }
+
     public static void pause(DownloadMission mission) {
         mission.pause();
     }
@@ -116,8 +128,7 @@ public class ZDownloader {
     }
 
     public static void clear(DownloadMission mission) {
-        mission.clear();
-        DownloadManagerImpl.getInstance().getMissions().remove(mission);
+        DownloadManagerImpl.getInstance().clearMission(mission.getUuid());
     }
 
     public static void clear(String uuid) {
@@ -246,6 +246,22 @@ abstract class BaseConfig<T extends BaseConfig<T>> {
      * */
     boolean enableNotification = true;
 
+    /**
+     * 是否使用NIO通道（FileChannel + DirectByteBuffer）写入下载数据
+     * */
+    boolean enableNio = false;
+
+    /**
+     * 是否复用HTTP长连接（keep-alive）下载多个块。
+     * 在DownloaderConfig中开启时才会把HttpURLConnection连接池的大小（进程级的http.maxConnections）设为每个主机最大连接数
+     * */
+    boolean keepAlive = false;
+
+    /**
+     * 是否使用快速启动：只发一次Range请求获取文件信息，并直接用该响应下载第一个块
+     * */
+    boolean fastStart = false;
+
     /**
      * 下载时传入的cookie额值
      * */
@@ -322,6 +338,18 @@ abstract class BaseConfig<T extends BaseConfig<T>> {
         return enableNotification;
     }
 
+    public boolean getEnableNio() {
+        return enableNio;
+    }
+
+    public boolean getKeepAlive() {
+        return keepAlive;
+    }
+
+    public boolean getFastStart() {
+        return fastStart;
+    }
+
 
 
 
@@ -412,4 +440,19 @@ abstract class BaseConfig<T extends BaseConfig<T>> {
         this.enableNotification = enableNotification;
         return (T) this;
     }
+
+    public T setEnableNio(boolean enableNio) {
+        this.enableNio = enableNio;
+        return (T) this;
+    }
+
+    public T setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+        return (T) this;
+    }
+
+    public T setFastStart(boolean fastStart) {
+        this.fastStart = fastStart;
+        return (T) this;
+    }
 }
\ No newline at end of file
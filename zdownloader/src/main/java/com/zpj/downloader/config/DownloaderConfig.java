@@ -3,6 +3,8 @@ package com.zpj.downloader.config;
 import android.content.Context;
 
 import com.zpj.downloader.constant.DefaultConstant;
+import com.zpj.downloader.transport.Transport;
+import com.zpj.downloader.transport.UrlConnectionTransport;
 
 import java.net.InetSocketAddress;
 import java.net.Proxy;
@@ -16,6 +18,37 @@ public class DownloaderConfig extends BaseConfig<DownloaderConfig> {
 
     private int concurrentMissionCount = DefaultConstant.CONCURRENT_MISSION_COUNT;
 
+    /**
+     * 所有任务共享的每个主机最大连接数
+     * */
+    private int maxConnectionsPerHost = DefaultConstant.MAX_CONNECTIONS_PER_HOST;
+
+    /**
+     * 所有任务共享的下载线程数，每个任务的线程数不能超过该值
+     * */
+    private int downloadThreadCount = DefaultConstant.DOWNLOAD_THREAD_COUNT;
+
+    /**
+     * 所有任务的总下载速度限制（字节/秒），小于等于0表示不限速，运行时修改立即生效
+     * */
+    private volatile long speedLimit = 0;
+
+    /**
+     * 同时下载的任务数已满时，是否允许优先级更高的任务抢占正在下载的优先级较低的任务
+     * */
+    private boolean preemptive = false;
+
+    /**
+     * 批量添加任务时同时获取文件信息的任务数，其余任务排队等待
+     * */
+    private int maxProbeCount = DefaultConstant.MAX_PROBE_COUNT;
+
+    /**
+     * 下载请求的传输层，所有任务共用，默认使用HttpURLConnection，
+     * 使用{@link com.zpj.downloader.transport.OkHttpTransport}时同一主机的请求通过HTTP/2复用一个连接
+     * */
+    private transient Transport transport = new UrlConnectionTransport();
+
     private DownloaderConfig() {
 
     }
@@ -34,4 +67,58 @@ public class DownloaderConfig extends BaseConfig<DownloaderConfig> {
         this.concurrentMissionCount = concurrentMissionCount;
         return this;
     }
+
+    public boolean getPreemptive() {
+        return preemptive;
+    }
+
+    public DownloaderConfig setPreemptive(boolean preemptive) {
+        this.preemptive = preemptive;
+        return this;
+    }
+
+    public int getMaxProbeCount() {
+        return maxProbeCount;
+    }
+
+    public DownloaderConfig setMaxProbeCount(int maxProbeCount) {
+        this.maxProbeCount = maxProbeCount;
+        return this;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    public DownloaderConfig setTransport(Transport transport) {
+        this.transport = transport;
+        return this;
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    public DownloaderConfig setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        return this;
+    }
+
+    public int getDownloadThreadCount() {
+        return downloadThreadCount;
+    }
+
+    public DownloaderConfig setDownloadThreadCount(int downloadThreadCount) {
+        this.downloadThreadCount = downloadThreadCount;
+        return this;
+    }
+
+    public long getSpeedLimit() {
+        return speedLimit;
+    }
+
+    public DownloaderConfig setSpeedLimit(long speedLimit) {
+        this.speedLimit = speedLimit;
+        return this;
+    }
 }
@@ -1,12 +1,56 @@
 package com.zpj.downloader.config;
 
+import com.zpj.downloader.constant.DefaultConstant;
 import com.zpj.downloader.core.DownloadManagerImpl;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * @author Z-P-J
  * */
 public class MissionConfig extends BaseConfig<MissionConfig> {
 
+    /**
+     * 任务优先级，下载线程不足时优先级高的任务先执行
+     * */
+    private int priority = 0;
+
+    /**
+     * 单个任务的下载速度限制（字节/秒），小于等于0表示不限速，运行时修改立即生效
+     * */
+    private volatile long speedLimit = 0;
+
+    /**
+     * 是否根据实际下载速度自动调整线程数，初始线程数为{@link #getThreadCount()}
+     * */
+    private boolean adaptiveThreadCount = false;
+
+    /**
+     * 自动调整线程数时的最大线程数
+     * */
+    private int maxThreadCount = DefaultConstant.MAX_THREAD_COUNT;
+
+    /**
+     * 同一文件的其他下载地址，下载时根据各地址的速度和出错情况分配片段
+     * */
+    private List<String> mirrors = new ArrayList<>();
+
+    /**
+     * 是否在下载过程中校验每个块（服务器返回Content-MD5时），校验失败的块重新下载
+     * */
+    private boolean verifyBlocks = false;
+
+    /**
+     * 文件摘要算法，例如MD5、SHA-1、SHA-256
+     * */
+    private String checksumAlgorithm = "MD5";
+
+    /**
+     * 文件的预期摘要（十六进制或Base64），为空时使用服务器Digest响应头中的值，都没有时不校验
+     * */
+    private String checksum = "";
+
     private MissionConfig() {
 
     }
@@ -28,7 +72,86 @@ public class MissionConfig extends BaseConfig<MissionConfig> {
                 .setReadOutTime(config.readOutTime)
                 .setUserAgent(config.userAgent)
                 .setCookie(config.cookie)
-                .setEnableNotification(config.enableNotification);
+                .setEnableNotification(config.enableNotification)
+                .setEnableNio(config.enableNio)
+                .setKeepAlive(config.keepAlive)
+                .setFastStart(config.fastStart);
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public MissionConfig setPriority(int priority) {
+        this.priority = priority;
+        return this;
+    }
+
+    public long getSpeedLimit() {
+        return speedLimit;
+    }
+
+    public MissionConfig setSpeedLimit(long speedLimit) {
+        this.speedLimit = speedLimit;
+        return this;
+    }
+
+    public boolean getAdaptiveThreadCount() {
+        return adaptiveThreadCount;
+    }
+
+    public MissionConfig setAdaptiveThreadCount(boolean adaptiveThreadCount) {
+        this.adaptiveThreadCount = adaptiveThreadCount;
+        return this;
+    }
+
+    public int getMaxThreadCount() {
+        return maxThreadCount;
+    }
+
+    public MissionConfig setMaxThreadCount(int maxThreadCount) {
+        this.maxThreadCount = maxThreadCount;
+        return this;
+    }
+
+    public List<String> getMirrors() {
+        return mirrors;
+    }
+
+    public MissionConfig setMirrors(List<String> mirrors) {
+        this.mirrors = mirrors == null ? new ArrayList<String>() : new ArrayList<>(mirrors);
+        return this;
+    }
+
+    public MissionConfig addMirror(String mirror) {
+        if (mirrors == null) {
+            mirrors = new ArrayList<>();
+        }
+        mirrors.add(mirror);
+        return this;
+    }
+
+    public boolean getVerifyBlocks() {
+        return verifyBlocks;
+    }
+
+    public MissionConfig setVerifyBlocks(boolean verifyBlocks) {
+        this.verifyBlocks = verifyBlocks;
+        return this;
+    }
+
+    public String getChecksumAlgorithm() {
+        return checksumAlgorithm;
+    }
+
+    public String getChecksum() {
+        return checksum;
+    }
+
+    public MissionConfig setChecksum(String algorithm, String checksum) {
+        this.checksumAlgorithm = algorithm;
+        this.checksum = checksum;
+        return this;
     }
 
     public int getThreadCount() {
@@ -13,6 +13,13 @@ public class DefaultConstant {
 
     public static final int BLOCK_SIZE = 1024 * 1024;
 
+    public static final int NIO_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * 空闲线程拆分正在下载的片段时，拆分后每一半的最小长度
+     */
+    public static final int MIN_SPLIT_SIZE = 128 * 1024;
+
     public static final String USER_AGENT = System.getProperty("http.agent");
 
     public static final int RETRY_COUNT = 3;
@@ -24,6 +31,17 @@ public class DefaultConstant {
 
     public static final int CONCURRENT_MISSION_COUNT = 3;
 
+    // 所有任务共享的下载线程数
+    public static final int DOWNLOAD_THREAD_COUNT = 16;
+
+    // 自适应线程数时单个任务的最大线程数
+    public static final int MAX_THREAD_COUNT = 8;
+
+    public static final int MAX_CONNECTIONS_PER_HOST = 16;
+
+    // 批量添加任务时同时获取文件信息的任务数
+    public static final int MAX_PROBE_COUNT = 4;
+
     public static final int CONNECT_OUT_TIME = 20000;
     public static final int READ_OUT_TIME = 20000;
 
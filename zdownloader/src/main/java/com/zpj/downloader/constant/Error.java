@@ -12,6 +12,7 @@ public class  Error {
     public static final Error IO = new Error("未知IO错误");
     public static final Error SERVER_UNSUPPORTED = new Error("服务器不支持");
     public static final Error CONNECTION_TIME_OUT = new Error("连接超时");
+    public static final Error CHECKSUM_MISMATCH = new Error("文件校验失败");
     public static final Error UNKNOWN = new Error("未知错误");
     
     private int errorCode;
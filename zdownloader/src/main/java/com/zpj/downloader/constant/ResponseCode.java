@@ -17,4 +17,8 @@ public class ResponseCode {
     public static final int RESPONSE_301 = 301;
 
     public static final int RESPONSE_302 = 302;
+
+    public static final int RESPONSE_429 = 429;
+
+    public static final int RESPONSE_503 = 503;
 }
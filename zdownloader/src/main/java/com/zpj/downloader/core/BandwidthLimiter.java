@@ -0,0 +1,80 @@
+package com.zpj.downloader.core;
+
+/**
+ * 令牌桶限速器。每秒产生rate个令牌（字节），桶容量为1秒的令牌数。
+ * <p>
+ * 读取数据后再扣除令牌，令牌不足时扣成负数并休眠到令牌补足为止，
+ * 多个线程同时扣除时等待时间依次累加，总速度不会超过限制。
+ * 速度限制在每次调用时传入，修改配置后立即生效，不需要重启任务；不限速时不会获取锁。
+ * @author Z-P-J
+ */
+class BandwidthLimiter {
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    /**
+     * 每次读取最多消耗的令牌占每秒令牌数的比例，避免一次读取后休眠过久
+     */
+    private static final int CHUNKS_PER_SECOND = 10;
+
+    private static final int MIN_CHUNK_SIZE = 1024;
+
+    private static final BandwidthLimiter GLOBAL = new BandwidthLimiter();
+
+    private long rate;
+
+    private long tokens;
+
+    private long lastRefillTime;
+
+    static BandwidthLimiter global() {
+        return GLOBAL;
+    }
+
+    /**
+     * 扣除已读取的字节数，令牌不足时阻塞当前线程
+     * @param bytes 已读取的字节数
+     * @param rate 每秒允许的字节数，小于等于0表示不限速
+     */
+    void acquire(long bytes, long rate) {
+        if (rate <= 0 || bytes <= 0) {
+            return;
+        }
+        long waitNanos = reserve(bytes, rate);
+        if (waitNanos > 0) {
+            try {
+                Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private synchronized long reserve(long bytes, long rate) {
+        long now = System.nanoTime();
+        if (this.rate != rate) {
+            // 第一次使用或速度限制被修改
+            this.rate = rate;
+            tokens = Math.min(tokens, rate);
+            lastRefillTime = now;
+        }
+        long elapsed = Math.min(now - lastRefillTime, NANOS_PER_SECOND);
+        if (elapsed > 0) {
+            tokens = Math.min(rate, tokens + elapsed * rate / NANOS_PER_SECOND);
+        }
+        lastRefillTime = now;
+        tokens -= bytes;
+        return tokens >= 0 ? 0 : -tokens * NANOS_PER_SECOND / rate;
+    }
+
+    /**
+     * @return 限速时一次读取的最大字节数
+     */
+    static int getChunkSize(int bufferSize, long rate) {
+        if (rate <= 0) {
+            return bufferSize;
+        }
+        return (int) Math.min(bufferSize, Math.max(MIN_CHUNK_SIZE, rate / CHUNKS_PER_SECOND));
+    }
+
+}
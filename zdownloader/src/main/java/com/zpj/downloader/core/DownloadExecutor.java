@@ -0,0 +1,179 @@
+package com.zpj.downloader.core;
+
+import android.util.Log;
+
+import com.zpj.downloader.config.DownloaderConfig;
+
+import java.util.Iterator;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 所有任务共享的下载线程池。
+ * <p>
+ * 下载线程数由{@link com.zpj.downloader.config.DownloaderConfig#getDownloadThreadCount()}限定，
+ * 每个任务的线程数只是它最多能占用的线程数（配额）。下载线程每次执行只下载一个片段，之后重新提交排队，
+ * 线程不足时排队的下载线程按（任务优先级，任务内序号，提交顺序）出队：优先级高的任务先执行，
+ * 同优先级的任务以片段为单位轮流占用线程，先开始的大任务不会一直占住所有线程。
+ * 任务初始化时获取文件信息的请求在单独的初始化线程中执行，不会排在下载线程后面；
+ * 任务信息和日志的写入在单独的IO线程中执行，不占用下载线程；下载数据由{@link WriteBehind}提交到单独的写入线程，
+ * 按提交顺序写入文件，不会被任务信息的写入和落盘阻塞。
+ * @author Z-P-J
+ */
+class DownloadExecutor {
+
+    private static final String TAG = DownloadExecutor.class.getSimpleName();
+
+    private static final long KEEP_ALIVE_TIME = 60;
+
+    private static volatile DownloadExecutor sInstance;
+
+    private final ThreadPoolExecutor downloadExecutor;
+
+    private final ThreadPoolExecutor probeExecutor;
+
+    private final ThreadPoolExecutor ioExecutor;
+
+    private final ThreadPoolExecutor writeExecutor;
+
+    private final AtomicLong sequence = new AtomicLong(0);
+
+    private DownloadExecutor(int threadCount, int probeCount) {
+        downloadExecutor = new ThreadPoolExecutor(threadCount, threadCount,
+                KEEP_ALIVE_TIME, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new NamedThreadFactory("ZDownloader-download-"));
+        downloadExecutor.allowCoreThreadTimeOut(true);
+        probeExecutor = new ThreadPoolExecutor(probeCount, probeCount,
+                KEEP_ALIVE_TIME, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("ZDownloader-probe-"));
+        probeExecutor.allowCoreThreadTimeOut(true);
+        ioExecutor = new ThreadPoolExecutor(1, 1,
+                KEEP_ALIVE_TIME, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("ZDownloader-io-"));
+        ioExecutor.allowCoreThreadTimeOut(true);
+        writeExecutor = new ThreadPoolExecutor(1, 1,
+                KEEP_ALIVE_TIME, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("ZDownloader-write-"));
+        writeExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    static DownloadExecutor getInstance() {
+        if (sInstance == null) {
+            synchronized (DownloadExecutor.class) {
+                if (sInstance == null) {
+                    DownloaderConfig config = DownloadManagerImpl.getInstance().getDownloaderConfig();
+                    sInstance = new DownloadExecutor(Math.max(1, config.getDownloadThreadCount()),
+                            Math.max(1, config.getMaxProbeCount()));
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * 提交任务的下载线程
+     * @param index 该线程在任务内的序号，序号相同的线程之间按优先级和提交顺序执行
+     */
+    void execute(DownloadMission mission, int index, Runnable runnable) {
+        downloadExecutor.execute(new Task(mission, mission.getMissionConfig().getPriority(),
+                index, sequence.getAndIncrement(), runnable));
+    }
+
+    /**
+     * 移除任务还在排队的下载线程，已经开始执行的线程由任务状态控制退出
+     * @return 移除的线程数
+     */
+    int cancel(DownloadMission mission) {
+        int count = 0;
+        Iterator<Runnable> iterator = downloadExecutor.getQueue().iterator();
+        while (iterator.hasNext()) {
+            Runnable runnable = iterator.next();
+            if (runnable instanceof Task && ((Task) runnable).mission == mission) {
+                iterator.remove();
+                count++;
+            }
+        }
+        if (count > 0) {
+            Log.d(TAG, "cancel " + count + " queued runnables of " + mission.getTaskName());
+        }
+        return count;
+    }
+
+    /**
+     * 在初始化线程中获取文件信息，初始化请求不和下载线程竞争，
+     * 线程数与{@link DownloaderConfig#getMaxProbeCount()}相同
+     */
+    void executeProbe(Runnable runnable) {
+        probeExecutor.execute(runnable);
+    }
+
+    /**
+     * 在IO线程中执行任务信息、日志等文件的写入
+     */
+    void executeIO(Runnable runnable) {
+        ioExecutor.execute(runnable);
+    }
+
+    /**
+     * 在写入线程中按提交顺序写入下载数据
+     */
+    void executeWrite(Runnable runnable) {
+        writeExecutor.execute(runnable);
+    }
+
+    private static class Task implements Runnable, Comparable<Task> {
+
+        private final DownloadMission mission;
+        private final int priority;
+        private final int index;
+        private final long sequence;
+        private final Runnable runnable;
+
+        private Task(DownloadMission mission, int priority, int index, long sequence, Runnable runnable) {
+            this.mission = mission;
+            this.priority = priority;
+            this.index = index;
+            this.sequence = sequence;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            runnable.run();
+        }
+
+        @Override
+        public int compareTo(Task o) {
+            if (priority != o.priority) {
+                return priority > o.priority ? -1 : 1;
+            }
+            if (index != o.index) {
+                return index < o.index ? -1 : 1;
+            }
+            return sequence < o.sequence ? -1 : (sequence == o.sequence ? 0 : 1);
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        private NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + count.incrementAndGet());
+            thread.setPriority(Thread.NORM_PRIORITY);
+            return thread;
+        }
+    }
+
+}
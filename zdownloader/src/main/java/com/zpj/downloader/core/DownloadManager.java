@@ -6,13 +6,10 @@ import com.zpj.downloader.config.MissionConfig;
 import com.zpj.downloader.config.DownloaderConfig;
 import com.zpj.downloader.config.ThreadPoolConfig;
 
-import java.util.ArrayList;
 import java.util.List;
 
 public interface DownloadManager {
 
-    List<DownloadMission> ALL_MISSIONS = new ArrayList<>();
-
     interface DownloadManagerListener {
         void onMissionAdd(DownloadMission mission);
 
@@ -27,6 +24,17 @@ public interface DownloadManager {
 
     int startMission(String url, String name, MissionConfig config);
 
+    /**
+     * 批量添加任务，去掉重复的链接后统一保存任务信息，按{@link DownloaderConfig#getMaxProbeCount()}限制同时初始化的任务数
+     * @return 与去重后的链接一一对应的任务，链接已经有任务时返回已有的任务
+     */
+    List<DownloadMission> startMissions(List<String> urls);
+
+    /**
+     * @param config 所有任务共用的配置，为null时每个任务使用默认配置
+     */
+    List<DownloadMission> startMissions(List<String> urls, MissionConfig config);
+
     void resumeMission(int id);
 
     void resumeMission(String uuid);
@@ -57,6 +65,16 @@ public interface DownloadManager {
 
     DownloadMission getMission(String uuid);
 
+    /**
+     * @return 原始链接或重定向后的链接为url的任务
+     */
+    List<DownloadMission> getMissionsByUrl(String url);
+
+    /**
+     * @return 下载文件路径为path的任务，没有时返回null
+     */
+    DownloadMission getMissionByPath(String path);
+
     int getCount();
 
     Context getContext();
@@ -67,11 +85,24 @@ public interface DownloadManager {
 
     boolean shouldMissionWaiting();
 
+    /**
+     * @return 所有正在下载的任务的平滑速度之和（字节/秒）
+     */
+    long getDownloadSpeed();
+
+    /**
+     * @return 所有正在下载的任务按总速度估算的剩余时间（毫秒），速度未知时返回-1
+     */
+    long getEstimatedTime();
+
     void loadMissions();
 
     void setDownloadManagerListener(DownloadManagerListener downloadManagerListener);
 
     DownloadManagerListener getDownloadManagerListener();
 
+    /**
+     * @return 按创建时间从新到旧排列的只读任务列表快照，遍历时其他线程可以增删任务
+     */
     List<DownloadMission> getMissions();
 }
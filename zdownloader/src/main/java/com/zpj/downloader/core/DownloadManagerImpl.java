@@ -4,7 +4,6 @@ import android.content.Context;
 import android.text.TextUtils;
 import android.util.Log;
 
-import com.google.gson.Gson;
 import com.zpj.downloader.config.MissionConfig;
 import com.zpj.downloader.config.DownloaderConfig;
 import com.zpj.downloader.config.ThreadPoolConfig;
@@ -13,10 +12,16 @@ import com.zpj.downloader.util.NetworkChangeReceiver;
 import com.zpj.downloader.util.Utility;
 
 import java.io.File;
-import java.util.Collections;
-import java.util.Comparator;
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * @author Z-P-J
@@ -41,8 +46,6 @@ public class DownloadManagerImpl implements DownloadManager {
 
 	private DownloaderConfig options;
 
-	private static AtomicInteger downloadingCount = new AtomicInteger(0);
-
 	private DownloadManagerImpl(Context context, DownloaderConfig options) {
 		mContext = context;
 		this.options = options;
@@ -53,6 +56,12 @@ public class DownloadManagerImpl implements DownloadManager {
 		}
 //		TASK_PATH = mContext.getExternalFilesDir("tasks").getAbsolutePath();
 		TASK_PATH = path.getPath();
+		if (options.getKeepAlive()) {
+			// HttpURLConnection内部连接池的大小，长连接模式下同一主机的空闲连接会被复用。
+			// 这两个系统属性对整个进程生效，只在开启长连接时设置，不改变宿主应用默认的HttpURLConnection行为
+			System.setProperty("http.keepAlive", "true");
+			System.setProperty("http.maxConnections", String.valueOf(options.getMaxConnectionsPerHost()));
+		}
 		File file = new File(getDownloadPath());
 		if (!file.exists()) {
 			file.mkdirs();
@@ -82,27 +91,10 @@ public class DownloadManagerImpl implements DownloadManager {
 		DownloadManagerImpl.DOWNLOAD_PATH = downloadPath;
 	}
 
-	private static int getDownloadingCount() {
-		return downloadingCount.get();
-	}
-
 	private static String getDownloadPath() {
 		return DOWNLOAD_PATH;
 	}
 
-	static void decreaseDownloadingCount() {
-		downloadingCount.decrementAndGet();
-		for (DownloadMission mission : ALL_MISSIONS) {
-			if (!mission.isFinished() && mission.isWaiting()) {
-				mission.start();
-			}
-		}
-	}
-
-	static void increaseDownloadingCount() {
-		downloadingCount.incrementAndGet();
-	}
-
 	@Override
 	public Context getContext() {
 		return mContext;
@@ -120,19 +112,13 @@ public class DownloadManagerImpl implements DownloadManager {
 
 	@Override
 	public List<DownloadMission> getMissions() {
-		Collections.sort(ALL_MISSIONS, new Comparator<DownloadMission>() {
-			@Override
-			public int compare(DownloadMission o1, DownloadMission o2) {
-				return - (int) (o1.getCreateTime() - o2.getCreateTime());
-			}
-		});
-		return ALL_MISSIONS;
+		return getRegistry().snapshot();
 	}
 
 	@Override
 	public void loadMissions() {
 		long time1 = System.currentTimeMillis();
-		ALL_MISSIONS.clear();
+		getRegistry().clear();
 		File f;
 		if (TASK_PATH != null) {
 			f = new File(TASK_PATH);
@@ -141,34 +127,66 @@ public class DownloadManagerImpl implements DownloadManager {
 		}
 
 		if (f.exists() && f.isDirectory()) {
-			for (final File sub : f.listFiles()) {
-				if (sub.isDirectory()) {
-					continue;
+			File[] files = f.listFiles(new FileFilter() {
+				@Override
+				public boolean accept(File file) {
+					return file.isFile() && file.getName().endsWith(MISSION_INFO_FILE_SUFFIX_NAME);
 				}
-				if (sub.getName().endsWith(MISSION_INFO_FILE_SUFFIX_NAME)) {
-					String str = Utility.readFromFile(sub.getAbsolutePath());
-					if (!TextUtils.isEmpty(str)) {
-						DownloadMission mis = new Gson().fromJson(str, DownloadMission.class);
-						Log.d("initMissions", "mis=null? " + (mis == null));
+			});
+			if (files != null && files.length > 0) {
+				// 任务信息文件之间互不依赖，并行读取和解析；块状态等到任务开始下载时再从日志中恢复
+				int threads = Math.max(1, Math.min(files.length, Runtime.getRuntime().availableProcessors()));
+				List<DownloadMission> missions = new ArrayList<>(files.length);
+				if (threads == 1) {
+					// 只有一个线程时直接在当前线程中读取，省去线程切换
+					for (File sub : files) {
+						DownloadMission mis = restoreMission(sub);
 						if (mis != null) {
-							mis.init();
-							insertMission(mis);
+							missions.add(mis);
+						}
+					}
+				} else {
+					ExecutorService executor = Executors.newFixedThreadPool(threads);
+					List<Future<DownloadMission>> futures = new ArrayList<>(files.length);
+					for (final File sub : files) {
+						futures.add(executor.submit(new Callable<DownloadMission>() {
+							@Override
+							public DownloadMission call() {
+								return restoreMission(sub);
+							}
+						}));
+					}
+					executor.shutdown();
+					for (Future<DownloadMission> future : futures) {
+						try {
+							DownloadMission mis = future.get();
+							if (mis != null) {
+								missions.add(mis);
+							}
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							break;
+						} catch (ExecutionException e) {
+							e.printStackTrace();
 						}
 					}
 				}
+				getRegistry().addAll(missions);
 			}
 		} else {
 			f.mkdirs();
 		}
 
-		Collections.sort(ALL_MISSIONS, new Comparator<DownloadMission>() {
-			@Override
-			public int compare(DownloadMission o1, DownloadMission o2) {
-				return - (int) (o1.getCreateTime() - o2.getCreateTime());
-			}
-		});
 		long time2  = System.currentTimeMillis();
-		Log.d(TAG, "deltaTime=" + (time2 - time1));
+		Log.d(TAG, "loadMissions count=" + getCount() + " deltaTime=" + (time2 - time1));
+	}
+
+	private static DownloadMission restoreMission(File file) {
+		String str = Utility.readFromFile(file.getAbsolutePath());
+		if (TextUtils.isEmpty(str)) {
+			return null;
+		}
+		return DownloadMission.restore(str);
 	}
 
 	@Override
@@ -202,6 +220,56 @@ public class DownloadManagerImpl implements DownloadManager {
 		return i;
 	}
 
+	@Override
+	public List<DownloadMission> startMissions(List<String> urls) {
+		return startMissions(urls, null);
+	}
+
+	@Override
+	public List<DownloadMission> startMissions(List<String> urls, MissionConfig config) {
+		long time1 = System.currentTimeMillis();
+		Set<String> unique = new LinkedHashSet<>();
+		for (String url : urls) {
+			if (!TextUtils.isEmpty(url) && !TextUtils.isEmpty(url.trim())) {
+				unique.add(url.trim());
+			}
+		}
+		List<DownloadMission> result = new ArrayList<>(unique.size());
+		List<DownloadMission> created = new ArrayList<>(unique.size());
+		List<DownloadMission> existing = new ArrayList<>();
+		for (String url : unique) {
+			List<DownloadMission> missions = getMissionsByUrl(url);
+			if (missions.isEmpty()) {
+				DownloadMission mission = DownloadMission.create(url, "", config == null ? MissionConfig.with() : config);
+				created.add(mission);
+				result.add(mission);
+			} else {
+				existing.add(missions.get(0));
+				result.add(missions.get(0));
+			}
+		}
+		// 一次加入任务列表，一次IO任务保存所有任务信息
+		getRegistry().addAll(created);
+		if (!created.isEmpty()) {
+			DownloadMission.writeMissionInfo(created);
+		}
+		if (downloadManagerListener != null) {
+			for (DownloadMission mission : created) {
+				downloadManagerListener.onMissionAdd(mission);
+			}
+		}
+		for (DownloadMission mission : existing) {
+			// 与单个添加时一样重新开始已有的任务，还在初始化的任务初始化完成后会自动开始
+			if (!mission.isIniting()) {
+				mission.start();
+			}
+		}
+		ProbeQueue.getInstance().submit(created);
+		Log.d(TAG, "startMissions count=" + urls.size() + " created=" + created.size()
+				+ " existing=" + existing.size() + " deltaTime=" + (System.currentTimeMillis() - time1));
+		return result;
+	}
+
 	@Override
 	public void resumeMission(int i) {
 		getMission(i).start();
@@ -214,7 +282,7 @@ public class DownloadManagerImpl implements DownloadManager {
 
 	@Override
 	public void resumeAllMissions() {
-		for (DownloadMission downloadMission : ALL_MISSIONS) {
+		for (DownloadMission downloadMission : getRegistry().snapshot()) {
 			downloadMission.start();
 		}
 	}
@@ -231,7 +299,7 @@ public class DownloadManagerImpl implements DownloadManager {
 
 	@Override
 	public void pauseAllMissions() {
-		for (DownloadMission downloadMission : ALL_MISSIONS) {
+		for (DownloadMission downloadMission : getRegistry().snapshot()) {
 			downloadMission.pause();
 		}
 	}
@@ -240,7 +308,7 @@ public class DownloadManagerImpl implements DownloadManager {
 	public void deleteMission(int i) {
 		DownloadMission d = getMission(i);
 		d.delete();
-		ALL_MISSIONS.remove(i);
+		getRegistry().remove(d);
 		if (downloadManagerListener != null) {
 			downloadManagerListener.onMissionDelete(d);
 		}
@@ -250,7 +318,7 @@ public class DownloadManagerImpl implements DownloadManager {
 	public void deleteMission(String uuid) {
 		DownloadMission d = getMission(uuid);
 		d.delete();
-		ALL_MISSIONS.remove(d);
+		getRegistry().remove(d);
 		if (downloadManagerListener != null) {
 			downloadManagerListener.onMissionDelete(d);
 		}
@@ -259,7 +327,7 @@ public class DownloadManagerImpl implements DownloadManager {
 	@Override
 	public void deleteMission(DownloadMission mission) {
 		mission.delete();
-		ALL_MISSIONS.remove(mission);
+		getRegistry().remove(mission);
 		if (downloadManagerListener != null) {
 			downloadManagerListener.onMissionDelete(mission);
 		}
@@ -267,10 +335,10 @@ public class DownloadManagerImpl implements DownloadManager {
 
 	@Override
 	public void deleteAllMissions() {
-		for (DownloadMission mission : ALL_MISSIONS) {
+		for (DownloadMission mission : getRegistry().snapshot()) {
 			mission.delete();
 		}
-		ALL_MISSIONS.clear();
+		getRegistry().clear();
 		if (downloadManagerListener != null) {
 			downloadManagerListener.onMissionDelete(null);
 		}
@@ -280,7 +348,7 @@ public class DownloadManagerImpl implements DownloadManager {
 	public void clearMission(int i) {
 		DownloadMission d = getMission(i);
 		d.clear();
-		ALL_MISSIONS.remove(i);
+		getRegistry().remove(d);
 		if (downloadManagerListener != null) {
 			downloadManagerListener.onMissionDelete(null);
 		}
@@ -290,7 +358,7 @@ public class DownloadManagerImpl implements DownloadManager {
 	public void clearMission(String uuid) {
 		DownloadMission d = getMission(uuid);
 		d.clear();
-		ALL_MISSIONS.remove(d);
+		getRegistry().remove(d);
 		if (downloadManagerListener != null) {
 			downloadManagerListener.onMissionDelete(null);
 		}
@@ -298,10 +366,10 @@ public class DownloadManagerImpl implements DownloadManager {
 
 	@Override
 	public void clearAllMissions() {
-		for (DownloadMission mission : ALL_MISSIONS) {
+		for (DownloadMission mission : getRegistry().snapshot()) {
 			mission.clear();
 		}
-		ALL_MISSIONS.clear();
+		getRegistry().clear();
 		if (downloadManagerListener != null) {
 			downloadManagerListener.onMissionDelete(null);
 		}
@@ -309,32 +377,62 @@ public class DownloadManagerImpl implements DownloadManager {
 
 	@Override
 	public DownloadMission getMission(int i) {
-		return ALL_MISSIONS.get(i);
+		return getRegistry().get(i);
 	}
 
 	@Override
 	public DownloadMission getMission(String uuid) {
-		for (DownloadMission mission : ALL_MISSIONS) {
-			if (TextUtils.equals(mission.getUuid(), uuid)) {
-				return mission;
-			}
-		}
-		return null;
+		return getRegistry().get(uuid);
+	}
+
+	@Override
+	public List<DownloadMission> getMissionsByUrl(String url) {
+		return getRegistry().getByUrl(url);
+	}
+
+	@Override
+	public DownloadMission getMissionByPath(String path) {
+		return getRegistry().getByPath(path);
 	}
 
 	@Override
 	public int getCount() {
-		return ALL_MISSIONS.size();
+		return getRegistry().size();
 	}
 	
 	private int insertMission(DownloadMission mission) {
-		ALL_MISSIONS.add(mission);
-		return ALL_MISSIONS.size() - 1;
+		return getRegistry().add(mission);
+	}
+
+	private MissionRegistry getRegistry() {
+		return MissionRegistry.getInstance();
 	}
 
 	@Override
 	public boolean shouldMissionWaiting() {
-		return DownloadManagerImpl.getDownloadingCount() >= getDownloaderConfig().getConcurrentMissionCount();
+		return MissionScheduler.getInstance().isFull();
+	}
+
+	@Override
+	public long getDownloadSpeed() {
+		long speed = 0;
+		for (DownloadMission mission : getRegistry().snapshot()) {
+			speed += mission.getAverageSpeed();
+		}
+		return speed;
+	}
+
+	@Override
+	public long getEstimatedTime() {
+		long speed = 0;
+		long remaining = 0;
+		for (DownloadMission mission : getRegistry().snapshot()) {
+			if (mission.isRunning()) {
+				speed += mission.getAverageSpeed();
+				remaining += mission.getLength() - mission.getDone();
+			}
+		}
+		return SpeedEstimator.estimateTime(remaining, speed);
 	}
 
 }
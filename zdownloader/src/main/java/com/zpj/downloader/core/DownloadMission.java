@@ -5,20 +5,22 @@ import android.os.Handler;
 import android.os.Looper;
 import android.text.TextUtils;
 import android.util.Log;
-import android.util.LongSparseArray;
 import android.util.SparseArray;
 import android.webkit.MimeTypeMap;
 import android.widget.Toast;
 
 import com.google.gson.Gson;
+import com.zpj.downloader.config.DownloaderConfig;
 import com.zpj.downloader.config.MissionConfig;
+import com.zpj.downloader.constant.DefaultConstant;
 import com.zpj.downloader.constant.Error;
 import com.zpj.downloader.constant.ErrorCode;
 import com.zpj.downloader.constant.ResponseCode;
+import com.zpj.downloader.transport.Response;
+import com.zpj.downloader.util.BlockBitmap;
+import com.zpj.downloader.util.ChecksumUtil;
 import com.zpj.downloader.util.FileUtil;
-import com.zpj.downloader.util.ThreadPoolFactory;
 import com.zpj.downloader.util.Utility;
-import com.zpj.downloader.util.io.BufferedRandomAccessFile;
 import com.zpj.downloader.util.notification.NotifyUtil;
 import com.zpj.http.ZHttp;
 import com.zpj.http.core.Connection;
@@ -27,17 +29,21 @@ import com.zpj.http.core.IHttp;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.net.Proxy;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Z-P-J
@@ -45,9 +51,32 @@ import java.util.concurrent.ThreadPoolExecutor;
 public class DownloadMission {
     private static final String TAG = DownloadMission.class.getSimpleName();
 
-    public interface MissionListener {
-        HashMap<MissionListener, Handler> HANDLER_STORE = new HashMap<>();
+    /**
+     * Gson是线程安全的，所有任务共用一个实例，避免每次序列化都重新反射解析类结构
+     */
+    private static final Gson GSON = new Gson();
+
+    /**
+     * 服务器限流时的最长退避时间
+     */
+    private static final long MAX_THROTTLE_BACKOFF = 60 * 1000;
+
+    /**
+     * 速度采样的最短间隔（毫秒）
+     */
+    private static final long MIN_SPEED_SAMPLE_TIME = 100;
 
+    /**
+     * 每次进度周期最多累加到文件摘要中的字节数
+     */
+    private static final long DIGEST_FOLD_SIZE = 32 * 1024 * 1024;
+
+    /**
+     * 单线程任务保存已下载字节数的间隔（毫秒）
+     */
+    private static final long FALLBACK_CHECKPOINT_INTERVAL = 5000;
+
+    public interface MissionListener {
         void onInit();
 
         void onStart();
@@ -87,9 +116,8 @@ public class DownloadMission {
         }
     }
 
-    private final LongSparseArray<Boolean> blockState = new LongSparseArray<>();
+    private transient final BlockBitmap blockState = new BlockBitmap();
 //    private final List<Error> errorHistoryList = new ArrayList<>();
-    private final List<Long> speedHistoryList = new ArrayList<>();
 
     private String uuid = "";
     private String name = "";
@@ -108,6 +136,20 @@ public class DownloadMission {
     private boolean fallback = false;
     private int errCode = -1;
     private boolean hasInit = false;
+    /**
+     * 服务器返回的Digest响应头，没有指定预期摘要时用来校验文件
+     */
+    private String serverDigest = "";
+    /**
+     * 服务器返回的ETag和Last-Modified，单线程任务断点续传时通过If-Range确认文件没有变化
+     */
+    private String eTag = "";
+    private String lastModified = "";
+    /**
+     * 单线程任务已经写入文件并落盘的字节数，续传从该位置开始。
+     * done包含还在写入缓冲区中的数据，不能用来续传
+     */
+    private long syncedDone = 0;
     private MissionConfig missionConfig = MissionConfig.with();
 
     //-----------------------------------------------------transient---------------------------------------------------------------
@@ -118,19 +160,50 @@ public class DownloadMission {
 
     private transient int threadCount = missionConfig.getThreadPoolConfig().getCorePoolSize();
 
-    private transient ArrayList<WeakReference<MissionListener>> mListeners = new ArrayList<>();
+    private transient final CopyOnWriteArrayList<WeakReference<MissionListener>> mListeners = new CopyOnWriteArrayList<>();
 
     private transient boolean mWritingToFile = false;
 
-    private transient int errorCount = 0;
+    private transient volatile boolean mCheckpointing = false;
+
+    /**
+     * 块状态是否已经从日志中恢复。从文件加载的任务在第一次开始下载时才读取日志
+     */
+    private transient volatile boolean hydrated = false;
 
-    private transient ThreadPoolExecutor threadPoolExecutor;
+    private transient MissionJournal journal;
+
+    private transient int errorCount = 0;
 
     private transient long lastDone = -1;
-    private transient String tempSpeed = "0 KB/s";
-    private transient final UpdateInfo updateInfo = new UpdateInfo();
+    private transient long lastProgressTime;
+    private transient long lastFallbackCheckpointTime;
+    /**
+     * 单线程任务每次从头开始下载时加1，之前排队的检查点不再保存旧的位置
+     */
+    private transient int fallbackEpoch;
+    private transient final SpeedEstimator speedEstimator = new SpeedEstimator();
+    /**
+     * 最近一次的进度快照，只在主线程中替换
+     */
+    private transient UpdateInfo updateInfo;
     private transient final Handler handler = new Handler(Looper.getMainLooper());
-    private transient final ConcurrentLinkedQueue<Long> queue = new ConcurrentLinkedQueue<>();
+    private transient final ConcurrentLinkedQueue<Segment> queue = new ConcurrentLinkedQueue<>();
+    private transient final ProgressCounter progressCounter = new ProgressCounter();
+    private transient final BandwidthLimiter bandwidthLimiter = new BandwidthLimiter();
+    private transient final MissionStorage storage = new MissionStorage();
+    private transient ThreadCountController threadCountController;
+    private transient volatile MirrorSelector mirrorSelector;
+    private transient volatile MissionDigest missionDigest;
+    /**
+     * 快速启动时探测请求的连接，由下载第一个块的线程接管
+     */
+    private transient Response probeConnection;
+    private transient volatile boolean verifying = false;
+    private transient boolean verified = false;
+    private transient final AtomicInteger requestCount = new AtomicInteger(0);
+    private transient final AtomicInteger reusedConnectionCount = new AtomicInteger(0);
+    private transient final Set<Segment> runningSegments = Collections.newSetFromMap(new ConcurrentHashMap<Segment, Boolean>());
 
 
     //------------------------------------------------------runnables---------------------------------------------
@@ -302,67 +375,212 @@ public class DownloadMission {
                             Log.d(TAG, "falling back");
                         }
 
-                        Log.d("mission.name", "mission.name444=" + name);
-                        if (TextUtils.isEmpty(name)) {
-                            Log.d("Initializer", "getMissionNameFromUrl--url=" + url);
-                            name = getMissionNameFromUrl(DownloadMission.this, url);
-                        }
-
-                        Log.d("mission.name", "mission.name555=" + name);
+                        onProbed();
+                    }
+                })
+                .onError(new IHttp.OnErrorListener() {
+                    @Override
+                    public void onError(Throwable throwable) {
+                        notifyError(new Error(throwable.getMessage()));
+                    }
+                })
+                .subscribe();
+    }
 
-                        for (DownloadMission downloadMission : DownloadManagerImpl.ALL_MISSIONS) {
-                            if (!downloadMission.isIniting() && TextUtils.equals(name, downloadMission.name) &&
-                                    (TextUtils.equals(downloadMission.originUrl.trim(), url.trim()) ||
-                                            TextUtils.equals(downloadMission.redirectUrl.trim(), url.trim()))) {
-                                Log.d(TAG, "has mission---url=" + downloadMission.url);
-                                downloadMission.start();
+    /**
+     * 快速启动：只发一次第一个块的Range请求，从响应中获取文件长度、是否支持Range和文件名，
+     * 该响应不关闭，留给下载第一个块的线程直接读取，省去两次HEAD请求的往返时间。
+     * 响应不是200或206（重定向、出错等）时使用{@link #initMission()}处理
+     */
+    private void initMissionFast() {
+        // 在单独的初始化线程中请求，不排在其他任务的下载线程后面
+        DownloadExecutor.getInstance().executeProbe(new Runnable() {
+            @Override
+            public void run() {
+                Response conn = null;
+                try {
+                    conn = HttpUrlConnectionFactory.getConnection(DownloadMission.this, url, 0, getBlockSize() - 1);
+                    int code = conn.getCode();
+                    Log.d(TAG, "initMissionFast code=" + code + " Content-Range=" + conn.getHeader("Content-Range"));
+                    long total = code == ResponseCode.RESPONSE_206 ? HttpUrlConnectionFactory.getTotalLength(conn) : -1;
+                    if (code != ResponseCode.RESPONSE_200 && total <= 0) {
+                        HttpUrlConnectionFactory.releaseConnection(DownloadMission.this, conn, false);
+                        postInitMission();
+                        return;
+                    }
+                    onValidators(conn.getHeader("ETag"), conn.getHeader("Last-Modified"));
+                    if (TextUtils.isEmpty(name)) {
+                        name = getMissionNameFromDisposition(conn.getHeader("Content-Disposition"));
+                    }
+                    if (total > 0) {
+                        length = total;
+                    } else {
+                        // Fallback to single thread if no partial content support
+                        fallback = true;
+                        // 200响应的Content-Length就是文件长度，服务器没有返回时长度未知
+                        length = Math.max(0, HttpUrlConnectionFactory.getContentLength(conn));
+                        Log.d(TAG, "falling back length=" + length);
+                    }
+                    probeConnection = conn;
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if ((!fallback || length > 0) && !checkLength(DownloadMission.this)) {
+                                releaseProbeConnection();
                                 return;
                             }
+                            onProbed();
                         }
+                    });
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    HttpUrlConnectionFactory.releaseConnection(DownloadMission.this, conn, false);
+                    postInitMission();
+                }
+            }
+        });
+    }
 
-                        blocks = length / getBlockSize();
-                        Log.d(TAG, "blocks=" + blocks);
+    private void postInitMission() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                initMission();
+            }
+        });
+    }
+
+    /**
+     * 获取到文件信息后创建文件并开始下载。
+     * 预分配文件空间和创建日志都要落盘，大文件或存储较慢时耗时较长，在初始化线程中执行，完成后再回到主线程开始下载
+     */
+    private void onProbed() {
+        ProbeQueue.getInstance().finish(this);
+        Log.d("mission.name", "mission.name444=" + name);
+        if (TextUtils.isEmpty(name)) {
+            Log.d("Initializer", "getMissionNameFromUrl--url=" + url);
+            name = getMissionNameFromUrl(DownloadMission.this, url);
+        }
 
-                        if (threadCount > blocks) {
-                            threadCount = (int) blocks;
-                        }
+        Log.d("mission.name", "mission.name555=" + name);
 
-                        if (threadCount <= 0) {
-                            threadCount = 1;
-                        }
+        // 通过链接索引只比较链接相同的任务
+        for (DownloadMission downloadMission : MissionRegistry.getInstance().getByUrl(url)) {
+            if (downloadMission != this && !downloadMission.isIniting() && TextUtils.equals(name, downloadMission.name)) {
+                Log.d(TAG, "has mission---url=" + downloadMission.url);
+                releaseProbeConnection();
+                downloadMission.start();
+                return;
+            }
+        }
+        MissionRegistry.getInstance().reindex(this);
 
-                        if (blocks * getBlockSize() < length) {
-                            blocks++;
-                        }
-                        initQueue();
+        blocks = length / getBlockSize();
+        Log.d(TAG, "blocks=" + blocks);
 
+        if (threadCount > blocks) {
+            threadCount = (int) blocks;
+        }
 
-                        File loacation = new File(getDownloadPath());
-                        if (!loacation.exists()) {
-                            loacation.mkdirs();
+        if (threadCount <= 0) {
+            threadCount = 1;
+        }
+
+        if (blocks * getBlockSize() < length) {
+            blocks++;
+        }
+        initQueue();
+
+        DownloadExecutor.getInstance().executeProbe(new Runnable() {
+            @Override
+            public void run() {
+                final boolean allocated;
+                try {
+                    allocated = createFile();
+                } catch (final IOException e) {
+                    e.printStackTrace();
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            releaseProbeConnection();
+                            notifyError(new Error(e.getMessage()));
                         }
-                        File file = new File(getFilePath());
-                        if (!file.exists()) {
-                            file.createNewFile();
+                    });
+                    return;
+                }
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!allocated) {
+                            releaseProbeConnection();
+                            errCode = ErrorCode.ERROR_NO_ENOUGH_SPACE;
+                            notifyError(Error.NO_ENOUGH_SPACE, false);
+                            return;
+                        }
+                        if (MissionRegistry.getInstance().get(uuid) != DownloadMission.this) {
+                            // 创建文件期间任务已被删除，删除刚创建的文件和日志
+                            releaseProbeConnection();
+                            getJournal().delete();
+                            getFile().delete();
+                            return;
                         }
-
-                        Log.d(TAG, "storage=" + Utility.getAvailableSize());
                         hasInit = true;
-
-                        BufferedRandomAccessFile af = new BufferedRandomAccessFile(getFilePath(), "rw");
-                        af.setLength(length);
-                        af.close();
-
                         start();
                     }
-                })
-                .onError(new IHttp.OnErrorListener() {
-                    @Override
-                    public void onError(Throwable throwable) {
-                        notifyError(new Error(throwable.getMessage()));
-                    }
-                })
-                .subscribe();
+                });
+            }
+        });
+    }
+
+    /**
+     * 创建文件并预先分配空间，所有下载线程按位置写入同一个文件；分块下载时同时创建日志。
+     * 在初始化线程中调用
+     * @return 存储空间不足时返回false
+     */
+    private boolean createFile() throws IOException {
+        File loacation = new File(getDownloadPath());
+        if (!loacation.exists()) {
+            loacation.mkdirs();
+        }
+        Log.d(TAG, "storage=" + Utility.getAvailableSize());
+        if (!MissionStorage.allocate(getFilePath(), length)) {
+            return false;
+        }
+        if (!fallback) {
+            getJournal().create(getBlockSize(), length);
+        }
+        return true;
+    }
+
+    /**
+     * 快速启动时第一个块直接使用探测请求的响应
+     * @param position 下载线程开始下载的位置，只有从0开始时才能使用
+     * @return 探测请求的连接，没有或不能使用时返回null
+     */
+    synchronized Response takeProbeConnection(long position) {
+        Response conn = probeConnection;
+        if (conn == null || position != 0) {
+            return null;
+        }
+        probeConnection = null;
+        return conn;
+    }
+
+    /**
+     * 探测请求的响应没有被下载线程使用（任务重复、暂停等），在IO线程中关闭
+     */
+    private synchronized void releaseProbeConnection() {
+        final Response conn = probeConnection;
+        if (conn == null) {
+            return;
+        }
+        probeConnection = null;
+        DownloadExecutor.getInstance().executeIO(new Runnable() {
+            @Override
+            public void run() {
+                HttpUrlConnectionFactory.releaseConnection(DownloadMission.this, conn, false);
+            }
+        });
     }
 
     private final transient Runnable progressRunnable = new Runnable() {
@@ -374,31 +592,28 @@ public class DownloadMission {
                 return;
             }
             handler.postDelayed(progressRunnable, missionConfig.getProgressInterval());
-            long downloaded = done;
+            long downloaded = getDone();
             long delta = downloaded - lastDone;
+            long now = System.currentTimeMillis();
             Log.d(TAG, "progressRunnable--delta=" + delta);
-            speedHistoryList.add(delta);
-            if (delta > 0) {
+            // 按实际经过的时间计算速度，主线程繁忙导致的延迟不会使速度偏高；
+            // 开始下载时立即执行的那一次间隔太短，不作为采样
+            if (now - lastProgressTime >= MIN_SPEED_SAMPLE_TIME) {
+                speedEstimator.addSample(delta, now - lastProgressTime);
                 lastDone = downloaded;
-                double speed = delta * (missionConfig.getProgressInterval() / 1000f);
-                tempSpeed = Utility.formatSpeed(speed);
+                lastProgressTime = now;
+                adjustThreadCount();
             }
-            String downloadedSizeStr = Utility.formatSize(downloaded);
             float progress = getProgress(downloaded, length);
-            Log.d(TAG, "progressRunnable--tempSpeed=" + tempSpeed);
-            updateInfo.setDone(downloaded);
-            updateInfo.setSize(length);
-            updateInfo.setProgress(progress);
-            updateInfo.setFileSizeStr(getFileSizeStr());
-            updateInfo.setDownloadedSizeStr(downloadedSizeStr);
-            updateInfo.setProgressStr(String.format(Locale.US, "%.2f%%", progress));
-            updateInfo.setSpeedStr(tempSpeed);
-            writeMissionInfo();
+            // 只记录数值，字符串在监听器读取时才格式化
+            updateInfo = new UpdateInfo(downloaded, length, progress,
+                    speedEstimator.getSmoothedSpeed(), speedEstimator.getEstimatedTime(length - downloaded));
+            checkpoint();
             notifyStatus(MissionStatus.RUNNING);
             if (missionConfig.getEnableNotificatio()) {
                 NotifyUtil.with(getContext())
                         .buildProgressNotify()
-                        .setProgressAndFormat(getProgress(), false, "")
+                        .setProgressAndFormat(progress, false, "")
                         .setContentTitle(name)
                         .setId(getNotifyId())
                         .show();
@@ -409,13 +624,60 @@ public class DownloadMission {
     private final transient Runnable writeMissionInfoRunnable = new Runnable() {
         @Override
         public void run() {
-            synchronized (blockState) {
-                Utility.writeToFile(getMissionInfoFilePath(), new Gson().toJson(DownloadMission.this));
-                mWritingToFile = false;
+            flushProgress();
+            Utility.writeToFile(getMissionInfoFilePath(), GSON.toJson(DownloadMission.this));
+            mWritingToFile = false;
+        }
+    };
+
+    private final transient Runnable checkpointRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                // 先记下当前的日志序号，下载数据落盘后只落盘该序号之前的记录，
+                // 保证日志中记录的块一定已经写入文件，落盘期间完成的块留到下一次检查点
+                MissionJournal journal = getJournal();
+                long mark = journal.mark();
+                storage.force(getFilePath());
+                journal.sync(mark);
+                if (journal.shouldCompact()) {
+                    journal.compact(getBlockSize(), length);
+                }
+                // 文件摘要通常在写入数据时已经累加，续传前已下载的部分和乱序缓冲区放不下的部分从文件中读回
+                foldDigest(Math.min(blockState.nextClearBit(0) * getBlockSize(), length), DIGEST_FOLD_SIZE);
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                mCheckpointing = false;
             }
         }
     };
 
+    private final transient Runnable verifyRunnable = new Runnable() {
+        @Override
+        public void run() {
+            boolean matches = false;
+            try {
+                String[] expected = getExpectedChecksum();
+                MissionDigest digest = expected == null ? null : foldDigest(length, Long.MAX_VALUE);
+                if (digest != null) {
+                    byte[] actual = digest.digest();
+                    matches = MissionDigest.matches(actual, expected[1]);
+                    Log.d(TAG, "verify " + expected[0] + " actual=" + ChecksumUtil.toHex(actual) + " expected=" + expected[1]);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            final boolean result = matches;
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onVerified(result);
+                }
+            });
+        }
+    };
+
     private DownloadMission() {
 
     }
@@ -433,6 +695,25 @@ public class DownloadMission {
         return mission;
     }
 
+    /**
+     * 从任务信息文件的内容恢复任务，只还原任务的基本信息，不读取日志也不创建线程池，
+     * 可以在多个线程中并行调用
+     */
+    static DownloadMission restore(String json) {
+        DownloadMission mission = GSON.fromJson(json, DownloadMission.class);
+        if (mission == null) {
+            return null;
+        }
+        mission.currentRetryCount = mission.missionConfig.getRetryCount();
+        mission.threadCount = mission.missionConfig.getThreadCount();
+        mission.lastDone = mission.done;
+        if (mission.isRunning() || mission.isWaiting()) {
+            // 上次退出时未暂停的任务，下次启动后显示为已暂停
+            mission.missionStatus = MissionStatus.PAUSE;
+        }
+        return mission;
+    }
+
     //-------------------------下载任务状态-----------------------------------
     public boolean isIniting() {
         return missionStatus == MissionStatus.INITING;
@@ -469,29 +750,52 @@ public class DownloadMission {
 
     //----------------------------------------------------------operation------------------------------------------------------------
     void init() {
+        init(true);
+    }
+
+    /**
+     * @param writeInfo 是否保存任务信息，批量添加的任务已经统一保存过
+     */
+    void init(boolean writeInfo) {
         currentRetryCount = missionConfig.getRetryCount();
         threadCount = missionConfig.getThreadCount();
         lastDone = done;
-        if (threadPoolExecutor == null || threadPoolExecutor.getCorePoolSize() != 2 * threadCount) {
-            threadPoolExecutor = ThreadPoolFactory.newFixedThreadPool(missionConfig.getThreadPoolConfig());
-        }
         if (hasInit) {
-            initQueue();
             pause();
         } else {
-            writeMissionInfo();
+            if (writeInfo) {
+                writeMissionInfo();
+            }
 //            threadPoolExecutor.submit(initRunnable);
-            initMission();
+            if (missionConfig.getFastStart()) {
+                initMissionFast();
+            } else {
+                initMission();
+            }
         }
     }
 
     private void initQueue() {
         queue.clear();
-        for (long position = 0;  position < getBlocks(); position++) {
-            if (!isBlockPreserved(position)) {
-                Log.d(TAG, "initQueue add position=" + position);
-                queue.add(position);
-            }
+        runningSegments.clear();
+        for (long position = blockState.nextClearBit(0); position < getBlocks(); position = blockState.nextClearBit(position + 1)) {
+            Log.d(TAG, "initQueue add position=" + position);
+            long start = position * getBlockSize();
+            long end = Math.min(start + getBlockSize(), length) - 1;
+            queue.add(new Segment(position, start, end));
+        }
+        hydrated = true;
+    }
+
+    /**
+     * 从日志中恢复块状态并生成下载队列，只在第一次开始下载时执行
+     */
+    private void hydrate() {
+        if (hasInit && !hydrated && !fallback && !isFinished()) {
+            long start = System.currentTimeMillis();
+            restoreBlockState();
+            initQueue();
+            Log.d(TAG, "hydrate deltaTime=" + (System.currentTimeMillis() - start));
         }
     }
 
@@ -499,37 +803,56 @@ public class DownloadMission {
         errorCount = 0;
         if (!isRunning() && !isFinished()) {
             initCurrentRetryCount();
-            if (DownloadManagerImpl.getInstance().shouldMissionWaiting()) {
+            if (fallback && (isPause() || isError())) {
+                missionStatus = MissionStatus.INITING;
+                setRedirectUrl("");
+                url = originUrl;
+//                threadPoolExecutor.submit(initRunnable);
+                initMission();
+                return;
+            }
+
+            // 下载槽位已满时进入等待队列，有槽位空出时由调度器重新调用start
+            if (!MissionScheduler.getInstance().acquire(this)) {
                 waiting();
                 return;
             }
 
             if (fallback) {
-                if (isPause() || isError()) {
-                    missionStatus = MissionStatus.INITING;
-                    redirectUrl = "";
-                    url = originUrl;
-//                    threadPoolExecutor.submit(initRunnable);
-                    initMission();
-                    return;
-                }
-                // In fallback mode, resuming is not supported.
-                missionConfig.getThreadPoolConfig().setCorePoolSize(1);
+                // 单线程下载只能在服务器提供ETag或Last-Modified时续传，否则从头开始
                 threadCount = 1;
-                done = 0;
+                if (!canResumeFallback()) {
+                    setMissionDigest(null);
+                    resetProgress();
+                }
                 blocks = 0;
+            } else {
+                hydrate();
             }
-
-            DownloadManagerImpl.increaseDownloadingCount();
+            attachDigest();
 
             missionStatus = MissionStatus.RUNNING;
 
-            aliveThreadCount = threadCount;
-            if (threadPoolExecutor == null || threadPoolExecutor.getCorePoolSize() != 2 * threadCount) {
-                threadPoolExecutor = ThreadPoolFactory.newFixedThreadPool(missionConfig.getThreadPoolConfig());
+            speedEstimator.reset();
+            lastDone = getDone();
+            lastProgressTime = System.currentTimeMillis();
+
+            if (!fallback) {
+                mirrorSelector = new MirrorSelector(missionConfig.getMirrors());
+            }
+
+            threadCountController = null;
+            if (missionConfig.getAdaptiveThreadCount() && !fallback) {
+                DownloaderConfig config = DownloadManagerImpl.getInstance().getDownloaderConfig();
+                long maxThreads = Math.min(missionConfig.getMaxThreadCount(), Math.min(config.getDownloadThreadCount(), config.getMaxConnectionsPerHost()));
+                threadCountController = new ThreadCountController(threadCount, 1, (int) Math.min(maxThreads, blocks));
+                threadCount = threadCountController.getTarget();
             }
+
+            aliveThreadCount = threadCount;
+            // 线程数只是该任务在共享线程池中的配额
             for (int i = 0; i < threadCount; i++) {
-                threadPoolExecutor.submit(new DownloadRunnable(this, i));
+                DownloadExecutor.getInstance().execute(this, i, new DownloadRunnable(this, i));
             }
 
             writeMissionInfo();
@@ -541,14 +864,15 @@ public class DownloadMission {
     public void pause() {
         initCurrentRetryCount();
         handler.removeCallbacks(progressRunnable);
+        releaseProbeConnection();
         if (isRunning() || isWaiting()) {
             missionStatus = MissionStatus.PAUSE;
+            DownloadExecutor.getInstance().cancel(this);
             writeMissionInfo();
+            checkpoint();
             notifyStatus(missionStatus);
 
-            if (missionStatus != MissionStatus.WAITING) {
-                DownloadManagerImpl.decreaseDownloadingCount();
-            }
+            MissionScheduler.getInstance().release(this);
 
             if (missionConfig.getEnableNotificatio()) {
                 NotifyUtil.with(getContext())
@@ -561,10 +885,20 @@ public class DownloadMission {
         }
     }
 
+    /**
+     * 进入等待状态，正在下载时（被优先级更高的任务抢占）停止下载线程，已下载的进度保留
+     */
     public void waiting() {
+        // 等待期间不占用探测请求的连接（长连接模式下还有主机的连接许可），开始下载时重新发起Range请求
+        releaseProbeConnection();
+        if (isRunning()) {
+            handler.removeCallbacks(progressRunnable);
+            DownloadExecutor.getInstance().cancel(this);
+            writeMissionInfo();
+            checkpoint();
+        }
         missionStatus = MissionStatus.WAITING;
         notifyStatus(missionStatus);
-        pause();
     }
 
     public void delete() {
@@ -574,6 +908,7 @@ public class DownloadMission {
 
     public void clear() {
         pause();
+        ProgressDispatcher.getInstance().cancel(this);
         deleteMissionInfo();
     }
 
@@ -597,14 +932,297 @@ public class DownloadMission {
     }
 
     //------------------------------------------------------------notify------------------------------------------------------------
-    synchronized void notifyProgress(long deltaLen) {
-        done += deltaLen;
+    /**
+     * 按任务和全局的速度限制扣除已读取的字节数，超出限制时阻塞当前下载线程
+     */
+    void throttle(int len) {
+        bandwidthLimiter.acquire(len, missionConfig.getSpeedLimit());
+        BandwidthLimiter.global().acquire(len, getGlobalSpeedLimit());
+    }
+
+    /**
+     * @return 限速时一次读取的最大字节数
+     */
+    int getThrottleChunkSize(int bufferSize) {
+        int size = BandwidthLimiter.getChunkSize(bufferSize, missionConfig.getSpeedLimit());
+        return BandwidthLimiter.getChunkSize(size, getGlobalSpeedLimit());
+    }
+
+    private long getGlobalSpeedLimit() {
+        return DownloadManagerImpl.getInstance().getDownloaderConfig().getSpeedLimit();
+    }
+
+    /**
+     * 根据最近的下载速度调整线程数，线程数增加时立即提交新的下载线程，
+     * 减少时多余的线程在下载完当前片段后通过{@link #tryRetire()}退出
+     */
+    private synchronized void adjustThreadCount() {
+        if (threadCountController == null || !isRunning()) {
+            return;
+        }
+        applyThreadCount(threadCountController.update(speedEstimator));
+    }
+
+    private void applyThreadCount(int target) {
+        if (target != threadCount) {
+            Log.d(TAG, "applyThreadCount " + threadCount + "->" + target + " alive=" + aliveThreadCount);
+        }
+        threadCount = target;
+        while (aliveThreadCount < threadCount) {
+            DownloadExecutor.getInstance().execute(this, aliveThreadCount, new DownloadRunnable(this, aliveThreadCount));
+            aliveThreadCount++;
+        }
+    }
+
+    /**
+     * 下载线程在开始下一个片段前调用
+     * @return 线程数已超过目标值，当前线程应该退出
+     */
+    synchronized boolean tryRetire() {
+        if (aliveThreadCount > threadCount) {
+            aliveThreadCount--;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 服务器返回429/503等限流响应
+     * @param retryAfter 响应头Retry-After的值
+     * @return 下载线程需要等待的时间（毫秒），未开启自适应线程数时返回-1，按普通错误处理
+     */
+    synchronized long onServerThrottled(String retryAfter) {
+        if (threadCountController == null) {
+            return -1;
+        }
+        long backoff = missionConfig.getRetryDelay();
+        if (!TextUtils.isEmpty(retryAfter)) {
+            try {
+                backoff = Long.parseLong(retryAfter.trim()) * 1000;
+            } catch (NumberFormatException e) {
+                // Retry-After也可能是HTTP日期，此时使用重试间隔
+            }
+        }
+        backoff = Math.max(0, Math.min(backoff, MAX_THROTTLE_BACKOFF));
+        applyThreadCount(threadCountController.onThrottled(backoff));
+        return backoff;
+    }
+
+    MirrorSelector.Mirror acquireMirror() {
+        return mirrorSelector.acquire();
+    }
+
+    MirrorSelector.Mirror acquirePrimaryMirror() {
+        return mirrorSelector.acquirePrimary();
+    }
+
+    void releaseMirror(MirrorSelector.Mirror mirror, long bytes, long elapsed, boolean success) {
+        mirrorSelector.release(mirror, bytes, elapsed, success);
+    }
+
+    void disableMirror(MirrorSelector.Mirror mirror) {
+        mirrorSelector.disable(mirror);
+    }
+
+    /**
+     * @return 下载源当前的链接，任务本身的链接可能因为重定向而变化
+     */
+    String getUrl(MirrorSelector.Mirror mirror) {
+        return mirror.isPrimary() ? url : mirror.getUrl();
+    }
+
+    /**
+     * 单线程任务能否从已下载的位置继续下载，只从已经落盘的位置继续。
+     * 文件长度可能已经被预分配为完整长度，不能代表实际写入的数据
+     */
+    private synchronized boolean canResumeFallback() {
+        if (getIfRange() == null) {
+            return false;
+        }
+        long written = Math.min(syncedDone, getFile().length());
+        restoreProgress(Math.max(0, written));
+        return done > 0;
+    }
+
+    /**
+     * @return 续传时If-Range使用的值，优先使用强ETag，弱ETag不能用于If-Range；都没有时返回null
+     */
+    synchronized String getIfRange() {
+        if (!TextUtils.isEmpty(eTag) && !eTag.startsWith("W/")) {
+            return eTag;
+        }
+        if (!TextUtils.isEmpty(lastModified)) {
+            return lastModified;
+        }
+        return null;
+    }
+
+    /**
+     * 记录服务器返回的ETag和Last-Modified，与之前记录的不一致说明服务器上的文件已经变化，已下载的数据不能继续使用
+     */
+    synchronized void onValidators(String eTag, String lastModified) {
+        boolean changed = (!TextUtils.isEmpty(eTag) && !TextUtils.isEmpty(this.eTag) && !eTag.equals(this.eTag))
+                || (!TextUtils.isEmpty(lastModified) && !TextUtils.isEmpty(this.lastModified) && !lastModified.equals(this.lastModified));
+        if (changed && fallback) {
+            Log.d(TAG, "file changed on server, eTag=" + this.eTag + "->" + eTag + " lastModified=" + this.lastModified + "->" + lastModified);
+            resetProgress();
+            serverDigest = "";
+            setMissionDigest(null);
+            attachDigest();
+        }
+        if (changed || TextUtils.isEmpty(this.eTag)) {
+            this.eTag = eTag == null ? "" : eTag;
+        }
+        if (changed || TextUtils.isEmpty(this.lastModified)) {
+            this.lastModified = lastModified == null ? "" : lastModified;
+        }
+    }
+
+    /**
+     * 单线程任务续传时服务器返回了完整文件，已下载的数据作废，从头开始下载
+     */
+    synchronized void onFallbackRestart() {
+        resetProgress();
+        setMissionDigest(null);
+        attachDigest();
+    }
+
+    synchronized void onDigestHeader(String digest) {
+        if (!TextUtils.isEmpty(digest) && TextUtils.isEmpty(serverDigest)) {
+            serverDigest = digest;
+            attachDigest();
+        }
+    }
+
+    /**
+     * 下载线程校验片段失败，[from, 之后)已经写入文件的数据会被重新下载。
+     * 这部分数据已经累加到文件摘要中时摘要作废，重新计算，已经完成的部分之后从文件中读回
+     */
+    void onCorruptedRange(long from) {
+        MissionDigest digest = missionDigest;
+        if (digest != null) {
+            digest.invalidate(from);
+            attachDigest();
+        }
+    }
+
+    /**
+     * @return 文件的预期摘要[算法, 值]，优先使用配置中的值，没有时返回null
+     */
+    private String[] getExpectedChecksum() {
+        if (!TextUtils.isEmpty(missionConfig.getChecksum())) {
+            return new String[]{missionConfig.getChecksumAlgorithm(), missionConfig.getChecksum()};
+        }
+        if (!TextUtils.isEmpty(serverDigest)) {
+            for (String algorithm : new String[]{missionConfig.getChecksumAlgorithm(), "SHA-256", "SHA-1", "MD5"}) {
+                String value = MissionDigest.parseDigestHeader(serverDigest, algorithm);
+                if (value != null) {
+                    return new String[]{algorithm, value};
+                }
+            }
+        }
+        return null;
+    }
+
+    private void setMissionDigest(MissionDigest digest) {
+        missionDigest = digest;
+        storage.setDigest(digest);
+    }
+
+    /**
+     * 知道文件的预期摘要时创建文件摘要，之后写入的数据在写入时累加
+     * @return 不需要校验时返回null
+     */
+    private synchronized MissionDigest ensureDigest() throws NoSuchAlgorithmException {
+        String[] expected = getExpectedChecksum();
+        if (expected == null) {
+            return null;
+        }
+        MissionDigest digest = missionDigest;
+        if (digest == null || digest.isInvalid() || !digest.getAlgorithm().equals(expected[0])) {
+            digest = new MissionDigest(expected[0]);
+            setMissionDigest(digest);
+        }
+        return digest;
+    }
+
+    private void attachDigest() {
+        try {
+            ensureDigest();
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 从文件中读回[0, available)中还没有累加到文件摘要中的部分，只在IO线程中调用
+     * @return 不需要校验时返回null
+     */
+    private MissionDigest foldDigest(long available, long maxBytes) throws IOException {
+        MissionDigest digest;
+        try {
+            digest = ensureDigest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage());
+        }
+        if (digest != null) {
+            digest.fold(getFilePath(), available, maxBytes);
+        }
+        return digest;
+    }
+
+    private synchronized void onVerified(boolean matches) {
+        verifying = false;
+        setMissionDigest(null);
+        if (!isRunning()) {
+            // 校验期间任务被暂停，下次开始时直接完成或重新校验
+            verified = matches;
+            return;
+        }
+        if (matches) {
+            verified = true;
+            onFinish();
+        } else {
+            notifyError(Error.CHECKSUM_MISMATCH, false);
+        }
+    }
+
+    MissionStorage getStorage() {
+        return storage;
+    }
+
+    ProgressCounter.Cell newProgressCell() {
+        return progressCounter.newCell();
+    }
+
+    synchronized void releaseProgressCell(ProgressCounter.Cell cell) {
+        flushProgress();
+        progressCounter.removeCell(cell);
+    }
+
+    /**
+     * 汇总各下载线程的进度增量
+     */
+    private synchronized void flushProgress() {
+        done += progressCounter.drain();
         if (done > length) {
             done = length;
         }
     }
 
+    private synchronized void resetProgress() {
+        restoreProgress(0);
+        syncedDone = 0;
+        fallbackEpoch++;
+    }
+
+    private synchronized void restoreProgress(long done) {
+        progressCounter.drain();
+        this.done = done;
+    }
+
     synchronized void notifyFinished() {
+        flushProgress();
         Log.d(TAG, "notifyFinished errCode=" + errCode + " done=" + done + " length=" + length);
         if (errCode > 0) {
             return;
@@ -677,8 +1295,11 @@ public class DownloadMission {
 
     synchronized void notifyError(Error e, boolean fromThread) {
         Log.d(TAG, "err=" + e.getErrorMsg() + " fromThread=" + fromThread);
+        if (!hasInit) {
+            ProbeQueue.getInstance().finish(this);
+        }
 //        errorHistoryList.add(e);
-        if (!(e == Error.WITHOUT_STORAGE_PERMISSIONS || e == Error.FILE_NOT_FOUND)) {
+        if (!(e == Error.WITHOUT_STORAGE_PERMISSIONS || e == Error.FILE_NOT_FOUND || e == Error.CHECKSUM_MISMATCH)) {
             errorCount++;
             if (fromThread) {
                 aliveThreadCount--;
@@ -715,7 +1336,7 @@ public class DownloadMission {
 
         notifyError(e);
 
-        DownloadManagerImpl.decreaseDownloadingCount();
+        MissionScheduler.getInstance().release(this);
 
         if (missionConfig.getEnableNotificatio()) {
             NotifyUtil.with(getContext())
@@ -727,67 +1348,98 @@ public class DownloadMission {
     }
 
     private void notifyError(final Error e) {
+        ProgressDispatcher.getInstance().postError(this, e);
+    }
+
+    /**
+     * 状态变化立即分发，进度由{@link ProgressDispatcher}合并后按帧分发
+     */
+    private void notifyStatus(final MissionStatus status) {
+        if (status == MissionStatus.RUNNING) {
+            ProgressDispatcher.getInstance().postProgress(this);
+        } else {
+            ProgressDispatcher.getInstance().postStatus(this, status);
+        }
+    }
+
+    /**
+     * 在主线程中回调进度
+     */
+    void dispatchProgress() {
         for (WeakReference<MissionListener> ref : mListeners) {
-            final MissionListener listener = ref.get();
-            if (listener != null) {
-                MissionListener.HANDLER_STORE.get(listener).post(new Runnable() {
-                    @Override
-                    public void run() {
-                        listener.onError(e);
-                    }
-                });
+            MissionListener listener = ref.get();
+            if (listener == null) {
+                mListeners.remove(ref);
+            } else {
+                listener.onProgress(updateInfo);
             }
         }
     }
 
-    private void notifyStatus(final MissionStatus status) {
+    /**
+     * 在主线程中回调状态变化
+     */
+    void dispatchStatus(MissionStatus status) {
+        if (status == MissionStatus.FINISHED) {
+            updateInfo = new UpdateInfo(getDone(), getLength(), 100, getAverageSpeed(), 0);
+        }
         for (WeakReference<MissionListener> ref : mListeners) {
-            final MissionListener listener = ref.get();
-            if (listener != null) {
-                MissionListener.HANDLER_STORE.get(listener).post(new Runnable() {
-                    @Override
-                    public void run() {
-                        switch (status) {
-                            case INITING:
-                                listener.onInit();
-                                break;
-                            case START:
-                                listener.onStart();
-                                break;
-                            case RUNNING:
-                                listener.onProgress(updateInfo);
-                                break;
-                            case WAITING:
-                                listener.onWaiting();
-                                break;
-                            case PAUSE:
-                                listener.onPause();
-                                break;
-                            case RETRY:
-                                listener.onRetry();
-                                break;
-                            case FINISHED:
-                                updateInfo.setDone(getDone());
-                                updateInfo.setSize(getLength());
-                                updateInfo.setProgress(100);
-                                updateInfo.setFileSizeStr(getFileSizeStr());
-                                updateInfo.setDownloadedSizeStr(getDownloadedSizeStr());
-                                updateInfo.setProgressStr(String.format(Locale.US, "%.2f%%", getProgress()));
-                                updateInfo.setSpeedStr(tempSpeed);
-                                listener.onProgress(updateInfo);
-                                listener.onFinish();
-                                break;
-                            default:
-                                break;
-                        }
-                    }
-                });
+            MissionListener listener = ref.get();
+            if (listener == null) {
+                mListeners.remove(ref);
+                continue;
+            }
+            switch (status) {
+                case INITING:
+                    listener.onInit();
+                    break;
+                case START:
+                    listener.onStart();
+                    break;
+                case RUNNING:
+                    listener.onProgress(updateInfo);
+                    break;
+                case WAITING:
+                    listener.onWaiting();
+                    break;
+                case PAUSE:
+                    listener.onPause();
+                    break;
+                case RETRY:
+                    listener.onRetry();
+                    break;
+                case FINISHED:
+                    listener.onProgress(updateInfo);
+                    listener.onFinish();
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * 在主线程中回调错误
+     */
+    void dispatchError(Error e) {
+        for (WeakReference<MissionListener> ref : mListeners) {
+            MissionListener listener = ref.get();
+            if (listener == null) {
+                mListeners.remove(ref);
+            } else {
+                listener.onError(e);
             }
         }
     }
 
     private void onFinish() {
-        if (errCode > 0) {
+        if (errCode > 0 || verifying) {
+            return;
+        }
+        if (!verified && getExpectedChecksum() != null) {
+            // 先在IO线程中完成文件摘要的计算和校验，校验通过后再完成任务
+            verifying = true;
+            DownloadExecutor.getInstance().executeIO(verifyRunnable);
             return;
         }
         Log.d(TAG, "onFinish");
@@ -796,10 +1448,11 @@ public class DownloadMission {
         missionStatus = MissionStatus.FINISHED;
         finishTime = System.currentTimeMillis();
         writeMissionInfo();
+        getJournal().delete();
 
         notifyStatus(missionStatus);
 
-        DownloadManagerImpl.decreaseDownloadingCount();
+        MissionScheduler.getInstance().release(this);
 
         if (missionConfig.getEnableNotificatio()) {
             NotifyUtil.with(getContext())
@@ -814,38 +1467,111 @@ public class DownloadMission {
         }
     }
 
-    public synchronized void addListener(MissionListener listener) {
-        Handler handler = new Handler(Looper.getMainLooper());
-        MissionListener.HANDLER_STORE.put(listener, handler);
+    public void addListener(MissionListener listener) {
+        if (listener == null) {
+            return;
+        }
+        for (WeakReference<MissionListener> ref : mListeners) {
+            MissionListener l = ref.get();
+            if (l == null) {
+                mListeners.remove(ref);
+            } else if (l == listener) {
+                return;
+            }
+        }
         mListeners.add(new WeakReference<>(listener));
     }
 
-    public synchronized void removeListener(MissionListener listener) {
-        for (Iterator<WeakReference<MissionListener>> iterator = mListeners.iterator();
-             iterator.hasNext(); ) {
-            WeakReference<MissionListener> weakRef = iterator.next();
-            if (listener != null && listener == weakRef.get()) {
-                iterator.remove();
+    public void removeListener(MissionListener listener) {
+        for (WeakReference<MissionListener> ref : mListeners) {
+            MissionListener l = ref.get();
+            if (l == null || l == listener) {
+                mListeners.remove(ref);
             }
         }
     }
 
-    public synchronized void removeAllListener() {
-        for (Iterator<WeakReference<MissionListener>> iterator = mListeners.iterator();
-             iterator.hasNext(); ) {
-            WeakReference<MissionListener> weakRef = iterator.next();
-            iterator.remove();
-        }
+    public void removeAllListener() {
+        mListeners.clear();
     }
 
     private void writeMissionInfo() {
         if (!mWritingToFile) {
             mWritingToFile = true;
-            if (threadPoolExecutor == null) {
-                threadPoolExecutor = ThreadPoolFactory.newFixedThreadPool(missionConfig.getThreadPoolConfig());
+            DownloadExecutor.getInstance().executeIO(writeMissionInfoRunnable);
+        }
+    }
+
+    /**
+     * 在一次IO任务中保存多个任务的信息，批量添加任务时使用，不需要为每个任务单独提交
+     */
+    static void writeMissionInfo(final List<DownloadMission> missions) {
+        DownloadExecutor.getInstance().executeIO(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+                for (DownloadMission mission : missions) {
+                    Utility.writeToFile(mission.getMissionInfoFilePath(), GSON.toJson(mission));
+                }
+                Log.d(TAG, "writeMissionInfo count=" + missions.size() + " deltaTime=" + (System.currentTimeMillis() - start));
             }
-            threadPoolExecutor.submit(writeMissionInfoRunnable);
+        });
+    }
+
+    /**
+     * 把已完成的块记录落盘，每个进度周期最多执行一次；单线程任务定期保存已下载的字节数
+     */
+    private void checkpoint() {
+        if (fallback) {
+            // 单线程任务由下载线程在确认数据写入文件后调用checkpointFallback
+            return;
+        }
+        if (!mCheckpointing && hasInit && hydrated) {
+            mCheckpointing = true;
+            DownloadExecutor.getInstance().executeIO(checkpointRunnable);
+        }
+    }
+
+    /**
+     * 单线程任务的下载线程定期调用，距离上次检查点超过{@link #FALLBACK_CHECKPOINT_INTERVAL}时返回true，
+     * 服务器没有提供ETag或Last-Modified时不能续传，不需要检查点
+     */
+    synchronized boolean shouldCheckpointFallback() {
+        long now = System.currentTimeMillis();
+        if (!hasInit || getIfRange() == null || now - lastFallbackCheckpointTime < FALLBACK_CHECKPOINT_INTERVAL) {
+            return false;
         }
+        lastFallbackCheckpointTime = now;
+        return true;
+    }
+
+    /**
+     * 单线程任务的检查点，与日志一样先把下载数据落盘，再保存任务信息记录已落盘的位置，异常退出后从该位置续传
+     * @param written 已经写入文件的字节数，调用前下载线程必须已经等待写入完成
+     */
+    void checkpointFallback(final long written) {
+        final int epoch;
+        synchronized (this) {
+            epoch = fallbackEpoch;
+        }
+        DownloadExecutor.getInstance().executeIO(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    storage.force(getFilePath());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+                synchronized (DownloadMission.this) {
+                    if (epoch != fallbackEpoch || written <= syncedDone) {
+                        return;
+                    }
+                    syncedDone = written;
+                }
+                writeMissionInfo();
+            }
+        });
     }
 
     private void deleteMissionInfo() {
@@ -853,6 +1579,36 @@ public class DownloadMission {
         if (file.exists()) {
             file.delete();
         }
+        getJournal().delete();
+    }
+
+    private synchronized MissionJournal getJournal() {
+        if (journal == null) {
+            journal = new MissionJournal(new File(getJournalFilePath()));
+        }
+        return journal;
+    }
+
+    /**
+     * 从日志恢复已完成的块，已下载大小按已完成的块重新计算
+     */
+    private void restoreBlockState() {
+        long restored = 0;
+        synchronized (blockState) {
+            blockState.clear();
+            try {
+                for (long[] range : getJournal().load(getBlockSize(), length)) {
+                    blockState.set(range[0], range[1]);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            for (long[] range : blockState.toRanges()) {
+                restored += Math.min((range[1] + 1) * getBlockSize(), length) - range[0] * getBlockSize();
+            }
+        }
+        Log.d(TAG, "restoreBlockState restored=" + restored);
+        restoreProgress(restored);
     }
 
     private void initCurrentRetryCount() {
@@ -910,7 +1666,8 @@ public class DownloadMission {
         return length;
     }
 
-    public long getDone() {
+    public synchronized long getDone() {
+        flushProgress();
         return done;
     }
 
@@ -995,7 +1752,7 @@ public class DownloadMission {
     }
 
     public float getProgress() {
-        return getProgress(done, length);
+        return getProgress(getDone(), length);
     }
 
     public String getProgressStr() {
@@ -1007,11 +1764,49 @@ public class DownloadMission {
     }
 
     public String getDownloadedSizeStr() {
-        return Utility.formatSize(done);
+        return Utility.formatSize(getDone());
     }
 
     public String getSpeed() {
-        return tempSpeed;
+        return Utility.formatSpeed(getAverageSpeed());
+    }
+
+    /**
+     * @return 最近一个进度周期的下载速度（字节/秒）
+     */
+    public long getInstantSpeed() {
+        return isRunning() ? speedEstimator.getInstantSpeed() : 0;
+    }
+
+    /**
+     * @return 平滑后的下载速度（字节/秒）
+     */
+    public long getAverageSpeed() {
+        return isRunning() ? speedEstimator.getSmoothedSpeed() : 0;
+    }
+
+    /**
+     * @return 磁盘写入速度（字节/秒），按实际花在写入上的时间计算，远高于下载速度时说明瓶颈在网络
+     */
+    public long getDiskWriteSpeed() {
+        return storage.getWriteSpeed();
+    }
+
+    /**
+     * @return 任务加载以来写入磁盘的字节数
+     */
+    public long getDiskWrittenBytes() {
+        return storage.getWrittenBytes();
+    }
+
+    /**
+     * @return 预计剩余时间（毫秒），速度未知时返回-1
+     */
+    public long getEstimatedTime() {
+        if (isFinished()) {
+            return 0;
+        }
+        return isRunning() ? speedEstimator.getEstimatedTime(length - getDone()) : -1;
     }
 
     private int getNotifyId() {
@@ -1021,27 +1816,100 @@ public class DownloadMission {
         return notifyId;
     }
 
-    long getPosition() {
-        if (queue.isEmpty()) {
-            return -1;
+    /**
+     * 获取下一个待下载的片段。队列为空时从正在下载的片段中拆分出预计最晚完成的那个片段的后半段，
+     * 使所有线程一直工作到最后一个字节。
+     * @return 待下载的片段，没有可下载的片段时返回null
+     */
+    Segment nextSegment() {
+        Segment segment = queue.poll();
+        if (segment == null) {
+            segment = stealSegment();
+        }
+        if (segment != null) {
+            segment.onStart();
+            runningSegments.add(segment);
         }
-        return queue.poll();
+        return segment;
     }
 
-    void onPositionDownloadFailed(long position) {
-        queue.add(position);
+    private synchronized Segment stealSegment() {
+        Segment slowest = null;
+        long maxTime = -1;
+        for (Segment segment : runningSegments) {
+            if (segment.getRemaining() < 2 * DefaultConstant.MIN_SPLIT_SIZE) {
+                continue;
+            }
+            long time = segment.getEstimatedTime();
+            if (time > maxTime) {
+                maxTime = time;
+                slowest = segment;
+            }
+        }
+        if (slowest == null) {
+            return null;
+        }
+        Segment tail = slowest.split(DefaultConstant.MIN_SPLIT_SIZE);
+        Log.d(TAG, "stealSegment block=" + slowest.getBlock() + " tail=" + (tail == null ? null : tail.getPosition()));
+        return tail;
+    }
+
+    void onSegmentFinished(Segment segment) {
+        runningSegments.remove(segment);
+        if (segment.finish()) {
+            preserveBlock(segment.getBlock());
+        }
+    }
+
+    /**
+     * 片段下载失败或被暂停，剩余部分重新放回队列
+     */
+    void onSegmentFailed(Segment segment) {
+        runningSegments.remove(segment);
+        if (segment.isFinished()) {
+            onSegmentFinished(segment);
+        } else {
+            queue.add(segment);
+        }
+    }
+
+    void onConnectionOpened(boolean reused) {
+        requestCount.incrementAndGet();
+        if (reused) {
+            reusedConnectionCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return 本次运行发出的块请求数
+     */
+    public int getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * @return 复用已有连接、省去TCP/TLS握手的块请求数，由传输层统计，
+     * 使用{@link com.zpj.downloader.transport.UrlConnectionTransport}时无法得知，始终为0
+     */
+    public int getReusedConnectionCount() {
+        return reusedConnectionCount.get();
     }
 
     public String getMissionInfoFilePath() {
         return DownloadManagerImpl.TASK_PATH + File.separator + uuid + DownloadManagerImpl.MISSION_INFO_FILE_SUFFIX_NAME;
     }
 
+    String getJournalFilePath() {
+        return DownloadManagerImpl.TASK_PATH + File.separator + uuid + MissionJournal.JOURNAL_FILE_SUFFIX_NAME;
+    }
+
 
     //-----------------------------------------------------setter-----------------------------------------------------------------
 
 
     public void setTaskName(String name) {
         this.name = name;
+        MissionRegistry.getInstance().reindex(this);
     }
 
     void setUrl(String url) {
@@ -1050,6 +1918,7 @@ public class DownloadMission {
 
     void setRedirectUrl(String redirectUrl) {
         this.redirectUrl = redirectUrl;
+        MissionRegistry.getInstance().reindex(this);
     }
 
     void setOriginUrl(String originUrl) {
@@ -1069,13 +1938,13 @@ public class DownloadMission {
     //----------------------------------------------------------------other
 
     public boolean isBlockPreserved(long block) {
-        Boolean state = blockState.get(block);
-        return state != null && state;
+        return blockState.get(block);
     }
 
     void preserveBlock(long block) {
         synchronized (blockState) {
-            blockState.put(block, true);
+            blockState.set(block);
+            getJournal().append(block);
         }
     }
 
@@ -1086,6 +1955,9 @@ public class DownloadMission {
             mission.name = getMissionNameFromResponse(response);
             Log.d("mission.name", "mission.name333=" + mission.name);
         }
+        if (response.statusCode() / 100 == 2) {
+            mission.onValidators(response.header("ETag"), response.header("Last-Modified"));
+        }
         if (response.statusCode() == ResponseCode.RESPONSE_302
                 || response.statusCode() == ResponseCode.RESPONSE_301
                 || response.statusCode() == ResponseCode.RESPONSE_300) {
@@ -1093,7 +1965,7 @@ public class DownloadMission {
             Log.d(TAG, "redirectUrl=" + redictUrl);
             if (!TextUtils.isEmpty(redictUrl)) {
                 mission.url = redictUrl;
-                mission.redirectUrl = redictUrl;
+                mission.setRedirectUrl(redictUrl);
             }
         } else if (response.statusCode() == ErrorCode.ERROR_SERVER_404) {
             mission.errCode = ErrorCode.ERROR_SERVER_404;
@@ -1111,7 +1983,10 @@ public class DownloadMission {
     }
 
     private String getMissionNameFromResponse(Connection.Response response) {
-        String contentDisposition = response.header("Content-Disposition");
+        return getMissionNameFromDisposition(response.header("Content-Disposition"));
+    }
+
+    private String getMissionNameFromDisposition(String contentDisposition) {
         Log.d("contentDisposition", "contentDisposition=" + contentDisposition);
         if (contentDisposition != null) {
             String[] dispositions = contentDisposition.split(";");
@@ -1175,70 +2050,66 @@ public class DownloadMission {
         return true;
     }
 
-    public class UpdateInfo {
+    /**
+     * 进度快照，只包含数值，创建后不再修改，格式化后的字符串在读取时才生成。
+     * 每次更新进度都创建新的快照，监听器可以保留快照在任意线程中延后读取。
+     */
+    public static final class UpdateInfo {
 
-        private long size;
-        private long done;
-        private float progress;
-        private String fileSizeStr;
-        private String downloadedSizeStr;
-        private String progressStr;
-        private String speedStr;
+        private final long size;
+        private final long done;
+        private final float progress;
+        private final long speed;
+        private final long estimatedTime;
 
-        public long getSize() {
-            return size;
+        UpdateInfo(long done, long size, float progress, long speed, long estimatedTime) {
+            this.done = done;
+            this.size = size;
+            this.progress = progress;
+            this.speed = speed;
+            this.estimatedTime = estimatedTime;
         }
 
-        public void setSize(long size) {
-            this.size = size;
+        public long getSize() {
+            return size;
         }
 
         public long getDone() {
             return done;
         }
 
-        public void setDone(long done) {
-            this.done = done;
-        }
-
         public float getProgress() {
             return progress;
         }
 
-        void setProgress(float progress) {
-            this.progress = progress;
+        /**
+         * @return 下载速度（字节/秒）
+         */
+        public long getSpeed() {
+            return speed;
         }
 
-        public String getFileSizeStr() {
-            return fileSizeStr;
+        /**
+         * @return 预计剩余时间（毫秒），速度未知时为-1
+         */
+        public long getEstimatedTime() {
+            return estimatedTime;
         }
 
-        void setFileSizeStr(String fileSizeStr) {
-            this.fileSizeStr = fileSizeStr;
+        public String getFileSizeStr() {
+            return Utility.formatSize(size);
         }
 
         public String getDownloadedSizeStr() {
-            return downloadedSizeStr;
-        }
-
-        void setDownloadedSizeStr(String downloadedSizeStr) {
-            this.downloadedSizeStr = downloadedSizeStr;
+            return Utility.formatSize(done);
         }
 
         public String getProgressStr() {
-            return progressStr;
-        }
-
-        void setProgressStr(String progressStr) {
-            this.progressStr = progressStr;
+            return String.format(Locale.US, "%.2f%%", progress);
         }
 
         public String getSpeedStr() {
-            return speedStr;
-        }
-
-        void setSpeedStr(String speedStr) {
-            this.speedStr = speedStr;
+            return Utility.formatSpeed(speed);
         }
     }
 
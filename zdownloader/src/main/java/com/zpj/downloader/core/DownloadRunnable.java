@@ -2,37 +2,69 @@ package com.zpj.downloader.core;
 
 import android.util.Log;
 
+import com.zpj.downloader.constant.DefaultConstant;
 import com.zpj.downloader.constant.Error;
 import com.zpj.downloader.constant.ErrorCode;
 import com.zpj.downloader.constant.ResponseCode;
-import com.zpj.downloader.util.io.BufferedRandomAccessFile;
+import com.zpj.downloader.transport.Response;
 import com.zpj.downloader.util.permission.PermissionUtil;
 
 import java.io.BufferedInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.HttpURLConnection;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 public class DownloadRunnable implements Runnable {
     private static final String TAG = DownloadRunnable.class.getSimpleName();
 
     private static final int BUFFER_SIZE = 512;
 
+    /**
+     * 同一片段校验或写入失败超过该次数后任务出错
+     */
+    private static final int MAX_VERIFY_FAILURES = 3;
+
     private final DownloadMission mMission;
     private int mId;
 
     private final byte[] buf = new byte[BUFFER_SIZE];
 
-    private BufferedRandomAccessFile f;
+    /**
+     * 读取到的数据先放入缓冲区，由写入线程写入文件
+     */
+    private WriteBehind.Writer writer;
+
+    /**
+     * 按Content-MD5或Content-Digest校验片段时使用，每个线程复用一个实例
+     */
+    private MessageDigest blockDigest;
+
+    private ProgressCounter.Cell progressCell;
+
+    /**
+     * 本次执行下载完一个片段后还有剩余片段，结束后重新提交到线程池排队
+     */
+    private boolean requeue;
 
     DownloadRunnable(DownloadMission mission, int id) {
         mMission = mission;
         mId = id;
-        try {
-            f = new BufferedRandomAccessFile(mMission.getFilePath(), "rw");
-        } catch (IOException e) {
-            e.printStackTrace();
-            if (e instanceof FileNotFoundException) {
+    }
+
+    @Override
+    public void run() {
+		// 同一任务的所有线程共享一个文件通道，线程在线程池中真正开始执行时才打开，
+		// 排队中被取消的线程不会占用文件
+		MissionStorage storage = mMission.getStorage();
+		try {
+			storage.retain(mMission.getFilePath());
+		} catch (IOException e) {
+			e.printStackTrace();
+			if (e instanceof FileNotFoundException) {
 				notifyError(Error.FILE_NOT_FOUND);
 			} else {
 				if (PermissionUtil.checkStoragePermissions(DownloadManagerImpl.getInstance().getContext())) {
@@ -41,23 +73,62 @@ public class DownloadRunnable implements Runnable {
 					notifyError(Error.WITHOUT_STORAGE_PERMISSIONS);
 				}
 			}
-        }
+			return;
+		}
+		progressCell = mMission.newProgressCell();
+		writer = WriteBehind.getInstance().newWriter(storage);
+		requeue = false;
+		try {
+			download(storage);
+		} finally {
+			// 等待缓冲区中的数据写入文件后才能关闭文件
+			writer.close();
+			mMission.releaseProgressCell(progressCell);
+			storage.release();
+		}
+		// 所有资源释放后再排队，线程池中同一时刻只有一个该线程的实例
+		if (requeue && mMission.isRunning()) {
+			DownloadExecutor.getInstance().execute(mMission, mId, this);
+		}
     }
 
-    @Override
-    public void run() {
+    private void download(MissionStorage storage) {
 		if (mMission.isFallback()) {
 			try {
-				HttpURLConnection conn = HttpUrlConnectionFactory.getConnection(mMission);
-				if (conn.getResponseCode() / 100 != 2) {
+				// 已下载的部分由start()根据ETag/Last-Modified确认可以续传，通过If-Range请求剩余部分
+				long total = mMission.getDone();
+				String ifRange = mMission.getIfRange();
+				// 快速启动时直接读取探测请求的响应
+				Response probe = mMission.takeProbeConnection(total);
+				Response conn;
+				if (probe != null) {
+					conn = probe;
+				} else if (total > 0 && ifRange != null) {
+					conn = HttpUrlConnectionFactory.getConnection(mMission, total, ifRange);
+				} else {
+					conn = HttpUrlConnectionFactory.getConnection(mMission);
+				}
+				if (conn.getCode() / 100 != 2) {
 					Log.d("DownRunFallback", "error:206");
+					HttpUrlConnectionFactory.releaseConnection(mMission, conn, false);
 					notifyError(Error.SERVER_UNSUPPORTED);
 					return;
 				} else {
-					f.seek(0);
-					BufferedInputStream ipt = new BufferedInputStream(conn.getInputStream());
+					mMission.onValidators(conn.getHeader("ETag"), conn.getHeader("Last-Modified"));
+					if (total > 0 && (conn.getCode() != HttpURLConnection.HTTP_PARTIAL
+							|| HttpUrlConnectionFactory.getRangeStart(conn) != total)) {
+						// 文件已经变化或服务器不支持Range，返回的是完整文件，从头开始下载
+						Log.d(TAG, "resume rejected, code=" + conn.getCode() + " Content-Range=" + conn.getHeader("Content-Range"));
+						mMission.onFallbackRestart();
+						total = 0;
+					} else if (total > 0) {
+						Log.d(TAG, "resume fallback mission from " + total);
+					}
+					// 丢弃已下载位置之后没有计入进度的数据
+					storage.truncate(total);
+					BufferedInputStream ipt = new BufferedInputStream(conn.getBody());
 
-					int total = 0;
+					writer.begin(total);
 //					int lastTotal = 0;
 					while (mMission.isRunning()) {
 						long readStartTime = System.currentTimeMillis();
@@ -68,24 +139,31 @@ public class DownloadRunnable implements Runnable {
 							notifyProgress(0);
 							break;
 						}
+						writer.write(buf, 0, len);
 						total += len;
-						f.write(buf, 0, len);
-						f.flush();
+						mMission.setLength(total);
 						notifyProgress(len);
+						mMission.throttle(len);
 //						notifyProgress(total - lastTotal);
 //						lastTotal = total;
-						mMission.setLength(total);
 
 
 						if (Thread.currentThread().isInterrupted()) {
 							return;
 						}
 						Log.d(TAG, "writeTime=" + (System.currentTimeMillis() - readFinishedTime));
+						if (mMission.shouldCheckpointFallback()) {
+							// 只保存已经写入文件的位置，缓冲区中的数据不计入
+							writer.await();
+							mMission.checkpointFallback(total);
+						}
 					}
 
-//					f.close();
+					// 完成前数据必须已经写入文件
+					writer.await();
+					mMission.checkpointFallback(total);
 					ipt.close();
-					conn.disconnect();
+					HttpUrlConnectionFactory.releaseConnection(mMission, conn, false);
 				}
 			} catch (IOException e) {
 				e.printStackTrace();
@@ -98,129 +176,216 @@ public class DownloadRunnable implements Runnable {
 
 			Log.d(TAG, mId + ":isRunning=" + mMission.isRunning());
 			Log.d(TAG, mId + ":blocks=" + mMission.getBlocks());
+			boolean served = false;
 			while (mMission.getErrCode() == -1 && mMission.isRunning()) {
 
-				Log.d("timetimetimetime" + mId, "----------------------------start-------------------------");
-				long time0 = System.currentTimeMillis();
-
 				if (Thread.currentThread().isInterrupted()) {
 					return;
 				}
 
-				long position = mMission.getPosition();
-				Log.d(TAG, "id=" + mId + " position=" + position + " blocks=" + mMission.getBlocks());
-				if (position < 0 || position > mMission.getBlocks()) {
+				if (mMission.tryRetire()) {
+					Log.d(TAG, "id=" + mId + " retired");
 					break;
 				}
 
-				Log.d(TAG, mId + ":preserving position " + position);
+				if (served) {
+					// 每次执行只下载一个片段，之后让出线程重新排队，
+					// 线程不足时各任务的线程按优先级和提交顺序轮流执行，不会一直被先开始的任务占用
+					requeue = true;
+					return;
+				}
+
+				Segment segment = mMission.nextSegment();
+				if (segment == null) {
+					break;
+				}
+				served = true;
+				long position = segment.getBlock();
+				Log.d(TAG, "id=" + mId + " position=" + position + " blocks=" + mMission.getBlocks());
 
-				long start = position * mMission.getBlockSize();
-				long end = start + mMission.getBlockSize() - 1;
+				long start = segment.getPosition();
+				long end = segment.getEnd();
 
 				if (start >= mMission.getLength()) {
+					mMission.onSegmentFinished(segment);
 					continue;
 				}
 
-				if (end >= mMission.getLength()) {
-					end = mMission.getLength() - 1;
-				}
+				// 快速启动时第一个块直接读取探测请求的响应
+				Response probe = mMission.takeProbeConnection(start);
+				// 每个片段选择一个下载源，结束后把速度和出错情况反馈给选择器
+				MirrorSelector.Mirror mirror = probe != null ? mMission.acquirePrimaryMirror() : mMission.acquireMirror();
+				long mirrorStartTime = System.currentTimeMillis();
+				long mirrorStartPosition = start;
+				boolean mirrorSuccess = false;
+				try {
+					Response conn = probe;
 
-				HttpURLConnection conn;
+					try {
+						if (conn == null) {
+							conn = HttpUrlConnectionFactory.getConnection(mMission, mMission.getUrl(mirror), start, end);
+						}
 
-				int total = 0;
+						Log.d(TAG, mId + ":bytes=" + start + "-" + end);
+						Log.d(TAG, mId + ":Content-Length=" + conn.getHeader("Content-Length") + " Code:" + conn.getCode());
+
+						if (conn.getCode() == HttpURLConnection.HTTP_MOVED_PERM
+								|| conn.getCode() == HttpURLConnection.HTTP_MOVED_TEMP
+								|| conn.getCode() == HttpURLConnection.HTTP_MULT_CHOICE) {
+							String redictUrl = conn.getHeader("location");
+							Log.d(TAG, "redictUrl=" + redictUrl);
+							if (mirror.isPrimary()) {
+								mMission.setUrl(redictUrl);
+								mMission.setRedirectUrl(redictUrl);
+							} else {
+								mirror.setUrl(redictUrl);
+							}
+							HttpUrlConnectionFactory.releaseConnection(mMission, conn, false);
+							conn = HttpUrlConnectionFactory.getConnection(mMission, mMission.getUrl(mirror), start, end);
+						}
 
-				long time_0 = System.currentTimeMillis();
-				Log.d("timetimetimetime" + mId, "timetime=" + (time_0 - time0));
-				try {
-					conn = HttpUrlConnectionFactory.getConnection(mMission, start, end);
-
-					Log.d(TAG, mId + ":" + conn.getRequestProperty("Range"));
-					Log.d(TAG, mId + ":Content-Length=" + conn.getContentLength() + " Code:" + conn.getResponseCode());
-
-					if (conn.getResponseCode() == HttpURLConnection.HTTP_MOVED_PERM
-							|| conn.getResponseCode() == HttpURLConnection.HTTP_MOVED_TEMP
-							|| conn.getResponseCode() == HttpURLConnection.HTTP_MULT_CHOICE) {
-						String redictUrl = conn.getHeaderField("location");
-						Log.d(TAG, "redictUrl=" + redictUrl);
-						mMission.setUrl(redictUrl);
-						mMission.setRedirectUrl(redictUrl);
-						conn.disconnect();
-						conn = HttpUrlConnectionFactory.getConnection(mMission, start, end);
-					}
+						if (!mirror.isPrimary() && (conn.getCode() != HttpURLConnection.HTTP_PARTIAL
+								|| HttpUrlConnectionFactory.getTotalLength(conn) != mMission.getLength())) {
+							// 镜像出错或返回的文件与任务不一致，片段放回队列由其他下载源下载
+							Log.d(TAG, mId + ":mirror " + mirror + " failed " + conn.getCode()
+									+ " Content-Range=" + conn.getHeader("Content-Range"));
+							if (conn.getCode() == HttpURLConnection.HTTP_PARTIAL) {
+								mMission.disableMirror(mirror);
+							}
+							HttpUrlConnectionFactory.releaseConnection(mMission, conn, false);
+							mMission.onSegmentFailed(segment);
+							continue;
+						}
 
-					// A server may be ignoring the range requet
-					if (conn.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
-						Log.d("DownRun", "error:206");
-						mMission.onPositionDownloadFailed(position);
-						notifyError(Error.getHttpError(conn.getResponseCode()));
+						if (conn.getCode() == ResponseCode.RESPONSE_429
+								|| conn.getCode() == ResponseCode.RESPONSE_503) {
+							long backoff = mMission.onServerThrottled(conn.getHeader("Retry-After"));
+							if (backoff >= 0) {
+								// 服务器限流，片段放回队列，减少线程后退避重试
+								Log.d(TAG, mId + ":throttled " + conn.getCode() + " backoff=" + backoff);
+								HttpUrlConnectionFactory.releaseConnection(mMission, conn, false);
+								mMission.onSegmentFailed(segment);
+								if (mMission.tryRetire()) {
+									break;
+								}
+								// 分段休眠，任务暂停后尽快让出线程
+								long wakeTime = System.currentTimeMillis() + backoff;
+								long sleepTime;
+								while (mMission.isRunning() && (sleepTime = wakeTime - System.currentTimeMillis()) > 0) {
+									try {
+										Thread.sleep(Math.min(sleepTime, 500));
+									} catch (InterruptedException e) {
+										return;
+									}
+								}
+								continue;
+							}
+						}
 
-						Log.e(TAG, mId + ":Unsupported " + conn.getResponseCode());
+						// A server may be ignoring the range requet
+						if (conn.getCode() != HttpURLConnection.HTTP_PARTIAL) {
+							Log.d("DownRun", "error:206");
+							HttpUrlConnectionFactory.releaseConnection(mMission, conn, false);
+							mMission.onSegmentFailed(segment);
+							notifyError(Error.getHttpError(conn.getCode()));
 
-						return;
-					}
+							Log.e(TAG, mId + ":Unsupported " + conn.getCode());
 
-					long time_1 = System.currentTimeMillis();
-					Log.d("timetimetimetime" + mId, "ttttttttt=" + (time_1 - time_0));
-
-					f.seek(start);
-					BufferedInputStream ipt = new BufferedInputStream(conn.getInputStream());
-					long time1 = System.currentTimeMillis();
-					Log.d("timetimetimetime" + mId, "hhhhhhhhhh=" + (time1 - time_1));
-					int i = 0;
-					int tempTime = 0;
-					int tempTime2 = 0;
-					int tempTime3 = 0;
-					int tempTime4 = 0;
-
-					while (start < end && mMission.isRunning()) {
-						i++;
-						long time3 = System.currentTimeMillis();
-						final int len = ipt.read(buf, 0, BUFFER_SIZE);
-						long timet = System.currentTimeMillis();
-						tempTime4 += (timet - time3);
+							return;
+						}
 
-						if (len == -1) {
-							break;
+						mMission.onDigestHeader(conn.getHeader("Digest"));
+						// 服务器返回Content-MD5或Content-Digest时，在写入的同时计算本次响应的摘要，不需要再读一遍文件
+						String[] blockChecksum = mMission.getMissionConfig().getVerifyBlocks() ? getBlockChecksum(conn) : null;
+						MessageDigest md = blockChecksum == null ? null : getBlockDigest(blockChecksum[0]);
+
+						// 片段可能在下载过程中被其他线程拆分，每次写入前都要通过segment.claim认领写入范围
+						writer.begin(start);
+						if (mMission.getMissionConfig().getEnableNio()) {
+							// 直接把响应读入写入缓冲区，避免经过512字节的缓冲区的二次拷贝
+							ReadableByteChannel src = Channels.newChannel(conn.getBody());
+							while (!segment.isFinished() && mMission.isRunning()) {
+								// 限速时减小每次读取的长度，避免一次读取后长时间休眠
+								int max = mMission.getThrottleChunkSize(DefaultConstant.NIO_BUFFER_SIZE);
+								long remaining = segment.getRemaining();
+								if (remaining < max) {
+									max = (int) remaining;
+								}
+								int len = writer.read(src, max);
+								if (len == -1) {
+									break;
+								}
+								len = segment.claim(len);
+								writer.commit(len, md);
+								notifyProgress(len);
+								mMission.throttle(len);
+							}
 						} else {
-							start += len;
-							total += len;
-							long time_4 = System.currentTimeMillis();
-							f.write(buf, 0, len);
-
-							Log.d("len", "len=" + len);
-							long time4 = System.currentTimeMillis();
-							tempTime2 += (time4 - time_4);
-							notifyProgress(len);
-							long time5 = System.currentTimeMillis();
-							tempTime3 += (time5 - time4);
-							tempTime += (time5 - time3);
+							BufferedInputStream ipt = new BufferedInputStream(conn.getBody());
+							while (!segment.isFinished() && mMission.isRunning()) {
+								int len = ipt.read(buf, 0, BUFFER_SIZE);
+								if (len == -1) {
+									break;
+								}
+								len = segment.claim(len);
+								if (md != null) {
+									md.update(buf, 0, len);
+								}
+								writer.write(buf, 0, len);
+								notifyProgress(len);
+								mMission.throttle(len);
+							}
+						}
+						// 块完成后会写入日志，写入日志前数据必须已经写入文件
+						int writeFailures = awaitWrites(segment, mirrorStartPosition);
+						if (writeFailures > 0) {
+							mirrorSuccess = true;
+							HttpUrlConnectionFactory.releaseConnection(mMission, conn, false);
+							mMission.onSegmentFailed(segment);
+							if (writeFailures > MAX_VERIFY_FAILURES) {
+								notifyError(Error.IO);
+								return;
+							}
+							continue;
+						}
+						// 没有下载完并且任务仍在下载，说明连接提前结束
+						mirrorSuccess = segment.isFinished() || !mMission.isRunning();
+						// 片段没有被拆分并且完整读取时，响应体已经读完，连接可以复用
+						boolean fullyRead = segment.isFinished() && segment.getEnd() == end;
+						HttpUrlConnectionFactory.releaseConnection(mMission, conn, fullyRead);
+
+						if (md != null && fullyRead && !MissionDigest.matches(md.digest(), blockChecksum[1])) {
+							// 数据与响应头中的摘要不一致，撤销这部分进度并重新下载
+							long corrupted = segment.getPosition() - mirrorStartPosition;
+							Log.w(TAG, mId + ":position " + position + " corrupted, " + corrupted + " bytes will be downloaded again");
+							mirrorSuccess = false;
+							progressCell.add(-corrupted);
+							mMission.onCorruptedRange(mirrorStartPosition);
+							if (segment.rewind(mirrorStartPosition) > MAX_VERIFY_FAILURES) {
+								mMission.onSegmentFailed(segment);
+								notifyError(Error.CHECKSUM_MISMATCH);
+								return;
+							}
 						}
-					}
-					Log.d("timetimetimetime" + mId, "tempTime=" + tempTime);
-					Log.d("timetimetimetime" + mId, "tempTime2=" + tempTime2);
-					Log.d("timetimetimetime" + mId, "tempTime3=" + tempTime3);
-					Log.d("timetimetimetime" + mId, "tempTime4=" + tempTime4);
-					ipt.close();
-					conn.disconnect();
-
-					long time2 = System.currentTimeMillis();
-					Log.d("timetimetimetime" + mId, "time3333=" + (time2 - time1));
-					Log.d("timetimetimetime" + mId, "----------------------------finished-------------------------");
-					Log.d(TAG, mId + ":position " + position + " finished, total length " + total);
-
-					Log.d(TAG, mId + ":errorCode=" + mMission.getErrCode());
-					Log.d(TAG, mId + ":isRunning=" + mMission.isRunning());
-					Log.d(TAG, mId + ":blocks=" + mMission.getBlocks());
-					mMission.preserveBlock(position);
-
-					// TODO We should save progress for each thread
-				} catch (IOException e) {
 
-					notifyProgress(-total);
-					mMission.onPositionDownloadFailed(position);
+						if (segment.isFinished()) {
+							Log.d(TAG, mId + ":position " + position + " finished, end " + segment.getEnd());
+							mMission.onSegmentFinished(segment);
+						} else {
+							// 暂停或连接提前结束，剩余部分重新放回队列
+							mMission.onSegmentFailed(segment);
+						}
+					} catch (IOException e) {
+						HttpUrlConnectionFactory.releaseConnection(mMission, conn, false);
+						// 已认领的数据写入文件后片段才能放回队列，写入失败时片段回退到本次下载的开始位置
+						awaitWrites(segment, mirrorStartPosition);
+						mMission.onSegmentFailed(segment);
 
-					Log.d(TAG, mId + ":position " + position + " retrying");
+						Log.d(TAG, mId + ":position " + position + " retrying");
+					}
+				} finally {
+					mMission.releaseMirror(mirror, segment.getPosition() - mirrorStartPosition,
+							System.currentTimeMillis() - mirrorStartTime, mirrorSuccess);
 				}
 			}
 		}
@@ -236,19 +401,51 @@ public class DownloadRunnable implements Runnable {
 //        if (!mMission.isRunning()) {
 //            Log.d(TAG, "The mission has been paused. Passing.");
 //        }
+    }
+
+    /**
+     * 等待本线程提交的数据全部写入文件，写入失败时撤销本次下载的进度并把片段回退到rewindPosition
+     * @return 写入失败时返回该片段累计失败的次数，成功时返回0
+     */
+    private int awaitWrites(Segment segment, long rewindPosition) {
         try {
-            f.flush();
-            f.close();
+            writer.await();
+            return 0;
         } catch (IOException e) {
             e.printStackTrace();
+            progressCell.add(-(segment.getPosition() - rewindPosition));
+            return segment.rewind(rewindPosition);
         }
     }
 
+    /**
+     * @return 本次响应内容的摘要[算法, 值]，优先使用Content-Digest，服务器都没有返回时返回null
+     */
+    private static String[] getBlockChecksum(Response conn) {
+        String[] checksum = MissionDigest.parseContentDigest(conn.getHeader("Content-Digest"));
+        if (checksum != null) {
+            return checksum;
+        }
+        String contentMd5 = conn.getHeader("Content-MD5");
+        return contentMd5 == null ? null : new String[]{"MD5", contentMd5};
+    }
+
+    private MessageDigest getBlockDigest(String algorithm) {
+        if (blockDigest == null || !blockDigest.getAlgorithm().equals(algorithm)) {
+            try {
+                blockDigest = MessageDigest.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+        blockDigest.reset();
+        return blockDigest;
+    }
+
     public void notifyProgress(final int len) {
-        Log.d("notifyProgress", "len=" + len);
-		synchronized (mMission) {
-			mMission.notifyProgress(len);
-		}
+		// 只累加当前线程自己的计数，由任务的进度刷新统一汇总，读取数据时不需要竞争任务的锁
+		progressCell.add(len);
     }
 
 //    private void notifyError(final int err) {
@@ -2,18 +2,20 @@ package com.zpj.downloader.core;
 
 import android.text.TextUtils;
 
-import com.zpj.downloader.util.ssl.SSLContextUtil;
+import com.zpj.downloader.config.DownloaderConfig;
+import com.zpj.downloader.transport.Request;
+import com.zpj.downloader.transport.Response;
 
 import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
+import java.io.InputStream;
 import java.net.URL;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSocketFactory;
-
+/**
+ * 创建下载请求，通过{@link DownloaderConfig#getTransport()}发出，返回已经读取了响应头的响应
+ */
 class HttpUrlConnectionFactory {
 
     private static final String COOKIE = "Cookie";
@@ -21,50 +23,228 @@ class HttpUrlConnectionFactory {
     private static final String REFERER = "Referer";
 
 
-    static HttpURLConnection getConnection(DownloadMission mission, long start, long end) throws IOException {
-        URL url = new URL(mission.getUrl());
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        wrapConnection(conn, mission);
-        conn.setRequestProperty("Range", "bytes=" + start + "-" + end);
-        return conn;
+    private static final ConcurrentHashMap<String, HostPool> HOST_POOLS = new ConcurrentHashMap<>();
+
+    static Response getConnection(DownloadMission mission, long start, long end) throws IOException {
+        return getConnection(mission, mission.getUrl(), start, end);
     }
 
-    static HttpURLConnection getConnection(DownloadMission mission) throws IOException {
-        URL url = new URL(mission.getUrl());
-        HttpURLConnection conn = (HttpURLConnection)url.openConnection();
-        wrapConnection(conn, mission);
-        return conn;
+    /**
+     * 从指定的下载地址（任务链接或镜像）获取[start, end]范围的数据
+     */
+    static Response getConnection(DownloadMission mission, String link, long start, long end) throws IOException {
+        URL url = new URL(link);
+        Request request = newRequest(url, mission)
+                .setHeader("Range", "bytes=" + start + "-" + end);
+        if (mission.getMissionConfig().getKeepAlive()) {
+            HostPool pool = getHostPool(url);
+            pool.acquire();
+            try {
+                Response response = execute(request);
+                mission.onConnectionOpened(response.isConnectionReused());
+                return new PooledResponse(response, pool);
+            } catch (IOException e) {
+                pool.release();
+                throw e;
+            }
+        }
+        Response response = execute(request);
+        mission.onConnectionOpened(response.isConnectionReused());
+        return response;
+    }
+
+    /**
+     * 释放通过{@link #getConnection(DownloadMission, long, long)}获取的连接。
+     * 长连接模式下，响应体已经读完的连接留在传输层的连接池中，
+     * 下一个Range请求可以直接复用，省去TCP和TLS握手。
+     * @param reusable 响应体是否已经完整读取
+     */
+    static void releaseConnection(DownloadMission mission, Response response, boolean reusable) {
+        if (response == null) {
+            return;
+        }
+        response.close(reusable && mission.getMissionConfig().getKeepAlive());
     }
 
-    private static void wrapConnection(HttpURLConnection conn, DownloadMission mission) {
-        if (conn instanceof HttpsURLConnection) {
-//			HttpsURLConnection httpsURLConnection = (HttpsURLConnection) conn;
-            SSLContext sslContext =
-                    SSLContextUtil.getSSLContext(DownloadManagerImpl.getInstance().getContext(), SSLContextUtil.CA_ALIAS, SSLContextUtil.CA_PATH);
-            if (sslContext == null) {
-                sslContext = SSLContextUtil.getDefaultSLLContext();
+    private static HostPool getHostPool(URL url) {
+        String key = url.getProtocol() + "://" + url.getHost() + ":" + url.getPort();
+        HostPool pool = HOST_POOLS.get(key);
+        if (pool == null) {
+            int maxConnections = DownloadManagerImpl.getInstance().getDownloaderConfig().getMaxConnectionsPerHost();
+            pool = new HostPool(maxConnections);
+            HostPool old = HOST_POOLS.putIfAbsent(key, pool);
+            if (old != null) {
+                pool = old;
             }
-            SSLSocketFactory ssf = sslContext.getSocketFactory();
-            ((HttpsURLConnection) conn).setSSLSocketFactory(ssf);
-            ((HttpsURLConnection) conn).setHostnameVerifier(SSLContextUtil.HOSTNAME_VERIFIER);
         }
-//        conn.setInstanceFollowRedirects(false);
-        conn.setConnectTimeout(mission.getConnectOutTime());
-        conn.setReadTimeout(mission.getReadOutTime());
+        return pool;
+    }
+
+    static Response getConnection(DownloadMission mission) throws IOException {
+        return execute(newRequest(new URL(mission.getUrl()), mission));
+    }
+
+    /**
+     * 单线程任务断点续传，获取从start开始到文件结尾的数据。
+     * 服务器上的文件已经变化（If-Range不匹配）或服务器不支持Range时返回200和完整文件
+     * @param ifRange ETag或Last-Modified
+     */
+    static Response getConnection(DownloadMission mission, long start, String ifRange) throws IOException {
+        return execute(newRequest(new URL(mission.getUrl()), mission)
+                .setHeader("Range", "bytes=" + start + "-")
+                .setHeader("If-Range", ifRange));
+    }
+
+    /**
+     * @return Content-Range中的开始位置，无法解析时返回-1
+     */
+    static long getRangeStart(Response response) {
+        String contentRange = response.getHeader("Content-Range");
+        if (contentRange == null) {
+            return -1;
+        }
+        int start = contentRange.indexOf(' ');
+        int end = contentRange.indexOf('-');
+        if (start < 0 || end <= start) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(start + 1, end).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return Content-Range中的文件总长度，无法解析时返回-1
+     */
+    static long getTotalLength(Response response) {
+        String contentRange = response.getHeader("Content-Range");
+        if (contentRange == null) {
+            return -1;
+        }
+        int index = contentRange.lastIndexOf('/');
+        if (index < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(index + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 读取Content-Length，按long解析，文件超过2GB时不会溢出
+     * @return 响应体长度，没有该响应头时为-1
+     */
+    static long getContentLength(Response response) {
+        String contentLength = response.getHeader("Content-Length");
+        if (contentLength == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 通过{@link DownloaderConfig#getTransport()}发出请求，SSL由传输层设置
+     */
+    private static Response execute(Request request) throws IOException {
+        return DownloadManagerImpl.getInstance().getDownloaderConfig().getTransport().execute(request);
+    }
+
+    private static Request newRequest(URL url, DownloadMission mission) {
+        Request request = new Request(url)
+                .setConnectTimeout(mission.getConnectOutTime())
+                .setReadTimeout(mission.getReadOutTime());
         if (!TextUtils.isEmpty(mission.getCookie().trim())) {
-            conn.setRequestProperty(COOKIE, mission.getCookie());
+            request.setHeader(COOKIE, mission.getCookie());
         }
-        conn.setRequestProperty(USER_AGENT, mission.getUserAgent());
-//        conn.setRequestProperty("Accept", "*/*");
-        conn.setRequestProperty(REFERER, mission.getUrl());
-        conn.setConnectTimeout(mission.getConnectOutTime());
-        conn.setReadTimeout(mission.getReadOutTime());
+        request.setHeader(USER_AGENT, mission.getUserAgent());
+//        request.setHeader("Accept", "*/*");
+        request.setHeader(REFERER, mission.getUrl());
         Map<String, String> headers = mission.getHeaders();
         if (!headers.isEmpty()) {
             for (String key : headers.keySet()) {
-                conn.setRequestProperty(key, headers.get(key));
+                request.setHeader(key, headers.get(key));
             }
         }
+        return request;
+    }
+
+    /**
+     * 长连接模式下的响应，关闭时归还主机的连接数
+     */
+    private static class PooledResponse implements Response {
+
+        private final Response response;
+        private final HostPool pool;
+        private boolean closed;
+
+        private PooledResponse(Response response, HostPool pool) {
+            this.response = response;
+            this.pool = pool;
+        }
+
+        @Override
+        public int getCode() {
+            return response.getCode();
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return response.getHeader(name);
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            return response.getBody();
+        }
+
+        @Override
+        public boolean isConnectionReused() {
+            return response.isConnectionReused();
+        }
+
+        @Override
+        public synchronized void close(boolean reusable) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            response.close(reusable);
+            pool.release();
+        }
+    }
+
+    /**
+     * 所有任务共享的单个主机的并发连接数限制，与HttpURLConnection内部连接池（http.maxConnections）的行为保持一致。
+     * 传输层使用HTTP/2时限制的是同一主机的并发请求（流）数。
+     */
+    private static class HostPool {
+
+        private final Semaphore permits;
+
+        HostPool(int maxConnections) {
+            this.permits = new Semaphore(maxConnections, true);
+        }
+
+        void acquire() throws IOException {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting for a connection");
+            }
+        }
+
+        void release() {
+            permits.release();
+        }
     }
 
 }
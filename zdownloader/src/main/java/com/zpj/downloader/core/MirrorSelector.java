@@ -0,0 +1,162 @@
+package com.zpj.downloader.core;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 多下载源的选择。
+ * <p>
+ * 每个片段开始下载前选择一个下载源，选择得分最高的源：得分为该源单个连接的平均速度（EWMA）
+ * 乘以成功率，再除以该源上正在下载的连接数加1，速度快的源分到更多连接，同时避免所有连接集中到同一个源。
+ * 还没有速度数据的源优先尝试；连续出错的源暂停使用一段时间，返回的文件与任务不一致的源不再使用。
+ * 第一个源是任务本身的链接，所有源都不可用时仍然使用它，由原有的错误处理决定任务是否失败。
+ * @author Z-P-J
+ */
+class MirrorSelector {
+
+    private static final String TAG = MirrorSelector.class.getSimpleName();
+
+    /**
+     * 连续出错多少次后暂停使用
+     */
+    private static final int MAX_CONSECUTIVE_ERRORS = 3;
+
+    /**
+     * 暂停使用的时间（毫秒）
+     */
+    private static final long DISABLE_TIME = 60 * 1000;
+
+    private static final double ALPHA = 0.3;
+
+    /**
+     * 还没有速度数据的源使用的速度，保证新的源会被优先尝试
+     */
+    private static final double UNTRIED_SPEED = Double.MAX_VALUE / 1024;
+
+    private final List<Mirror> mirrors = new ArrayList<>();
+
+    MirrorSelector(List<String> urls) {
+        mirrors.add(new Mirror(null));
+        if (urls != null) {
+            for (String url : urls) {
+                if (url != null && !url.trim().isEmpty()) {
+                    mirrors.add(new Mirror(url.trim()));
+                }
+            }
+        }
+    }
+
+    /**
+     * 选择一个下载源，使用完后必须调用{@link #release(Mirror, long, long, boolean)}
+     */
+    synchronized Mirror acquire() {
+        long now = System.currentTimeMillis();
+        Mirror best = null;
+        double bestScore = -1;
+        for (Mirror mirror : mirrors) {
+            if (mirror.disabledUntil > now) {
+                continue;
+            }
+            double speed = mirror.speed <= 0 ? UNTRIED_SPEED : mirror.speed;
+            double successRate = (mirror.requests - mirror.errors + 1.0) / (mirror.requests + 1.0);
+            double score = speed * successRate / (mirror.connections + 1);
+            if (score > bestScore) {
+                best = mirror;
+                bestScore = score;
+            }
+        }
+        if (best == null) {
+            best = mirrors.get(0);
+        }
+        best.connections++;
+        best.requests++;
+        return best;
+    }
+
+    /**
+     * 使用任务本身的链接，用于已经建立的连接（如快速启动的探测请求）
+     */
+    synchronized Mirror acquirePrimary() {
+        Mirror primary = mirrors.get(0);
+        primary.connections++;
+        primary.requests++;
+        return primary;
+    }
+
+    /**
+     * @param bytes 本次下载的字节数
+     * @param elapsed 本次下载的时间（毫秒）
+     * @param success 是否正常结束
+     */
+    synchronized void release(Mirror mirror, long bytes, long elapsed, boolean success) {
+        mirror.connections--;
+        if (bytes > 0 && elapsed > 0) {
+            double speed = bytes * 1000.0 / elapsed;
+            mirror.speed = mirror.speed <= 0 ? speed : ALPHA * speed + (1 - ALPHA) * mirror.speed;
+        }
+        if (success) {
+            mirror.consecutiveErrors = 0;
+        } else {
+            mirror.errors++;
+            if (++mirror.consecutiveErrors >= MAX_CONSECUTIVE_ERRORS && mirror.disabledUntil != Long.MAX_VALUE) {
+                mirror.disabledUntil = System.currentTimeMillis() + DISABLE_TIME;
+                mirror.consecutiveErrors = 0;
+                Log.d(TAG, "disable " + mirror + " for " + DISABLE_TIME + "ms");
+            }
+        }
+    }
+
+    /**
+     * 下载源返回的文件与任务不一致，不再使用
+     */
+    synchronized void disable(Mirror mirror) {
+        if (!mirror.isPrimary()) {
+            mirror.disabledUntil = Long.MAX_VALUE;
+            Log.d(TAG, "disable " + mirror + " permanently");
+        }
+    }
+
+    static class Mirror {
+
+        /**
+         * 下载源的链接，任务本身的链接为null
+         */
+        private volatile String url;
+
+        private int connections;
+        private int requests;
+        private int errors;
+        private int consecutiveErrors;
+        private double speed;
+        private long disabledUntil;
+
+        private Mirror(String url) {
+            this.url = url;
+        }
+
+        boolean isPrimary() {
+            return url == null;
+        }
+
+        String getUrl() {
+            return url;
+        }
+
+        /**
+         * 下载源重定向后更新链接
+         */
+        void setUrl(String url) {
+            if (this.url != null) {
+                this.url = url;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return isPrimary() ? "primary" : url;
+        }
+    }
+
+}
@@ -0,0 +1,247 @@
+package com.zpj.downloader.core;
+
+import android.text.TextUtils;
+import android.util.Base64;
+
+import com.zpj.downloader.util.ChecksumUtil;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 整个文件的摘要，在下载过程中增量计算。
+ * <p>
+ * 数据写入文件后由{@link #update(ByteBuffer, long)}累加到摘要中，不需要再读一遍文件。
+ * 摘要只能按文件顺序计算，多个线程同时下载时后面的数据会先写入，这部分数据复制到容量有限的乱序缓冲区，
+ * 前面的数据到达后依次累加。乱序缓冲区已满时数据被丢弃，
+ * 由{@link #fold(String, long, long)}从文件中读回，续传时已经下载的部分也通过它读回。
+ * @author Z-P-J
+ */
+class MissionDigest {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * 乱序缓冲区的最大字节数
+     */
+    private static final int MAX_PENDING_BYTES = 8 * 1024 * 1024;
+
+    private final String algorithm;
+
+    private final MessageDigest digest;
+
+    /**
+     * 已经累加到摘要中的字节数
+     */
+    private long position;
+
+    private ByteBuffer buffer;
+
+    /**
+     * 乱序写入的数据，文件位置 -> 数据
+     */
+    private final TreeMap<Long, byte[]> pending = new TreeMap<>();
+
+    private int pendingBytes;
+
+    /**
+     * 已经累加的数据被撤销（校验失败后重新下载），摘要不能再使用
+     */
+    private boolean invalid;
+
+    MissionDigest(String algorithm) throws NoSuchAlgorithmException {
+        this.algorithm = algorithm;
+        this.digest = MessageDigest.getInstance(algorithm);
+    }
+
+    String getAlgorithm() {
+        return algorithm;
+    }
+
+    synchronized long getPosition() {
+        return position;
+    }
+
+    synchronized boolean isInvalid() {
+        return invalid;
+    }
+
+    /**
+     * 数据写入文件后调用，把data中的剩余数据累加到摘要中，不改变data的position
+     * @param offset data在文件中的位置
+     */
+    synchronized void update(ByteBuffer data, long offset) {
+        int len = data.remaining();
+        if (invalid || len == 0 || offset + len <= position) {
+            return;
+        }
+        if (offset > position) {
+            if (pendingBytes + len > MAX_PENDING_BYTES) {
+                // 之后由fold从文件中读回
+                return;
+            }
+            byte[] bytes = new byte[len];
+            data.duplicate().get(bytes);
+            byte[] old = pending.put(offset, bytes);
+            pendingBytes += len - (old == null ? 0 : old.length);
+            return;
+        }
+        ByteBuffer tail = data.duplicate();
+        tail.position(tail.position() + (int) (position - offset));
+        position = offset + len;
+        digest.update(tail);
+        drainPending();
+    }
+
+    /**
+     * [from, 之后)的数据校验失败，已写入的数据会被重新下载。
+     * 乱序缓冲区中这部分数据被丢弃；已经累加到摘要中时摘要作废
+     */
+    synchronized void invalidate(long from) {
+        if (from < position) {
+            invalid = true;
+        }
+        Map.Entry<Long, byte[]> entry;
+        while ((entry = pending.lastEntry()) != null && entry.getKey() + entry.getValue().length > from) {
+            pending.remove(entry.getKey());
+            pendingBytes -= entry.getValue().length;
+        }
+    }
+
+    /**
+     * 把乱序缓冲区中已经与摘要位置相接的数据依次累加
+     */
+    private void drainPending() {
+        Map.Entry<Long, byte[]> entry;
+        while ((entry = pending.firstEntry()) != null && entry.getKey() <= position) {
+            pending.remove(entry.getKey());
+            byte[] bytes = entry.getValue();
+            pendingBytes -= bytes.length;
+            long end = entry.getKey() + bytes.length;
+            if (end > position) {
+                int skip = (int) (position - entry.getKey());
+                digest.update(bytes, skip, bytes.length - skip);
+                position = end;
+            }
+        }
+    }
+
+    /**
+     * 从文件中读回[position, available)范围内没有通过{@link #update(ByteBuffer, long)}累加的数据，
+     * 用于续传时已经下载的部分和乱序缓冲区放不下的数据
+     * @param maxBytes 本次最多读取的字节数，避免长时间占用IO线程
+     */
+    synchronized void fold(String path, long available, long maxBytes) throws IOException {
+        long limit = Math.min(available, position + maxBytes);
+        if (invalid || limit <= position) {
+            return;
+        }
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        }
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            while (position < limit) {
+                buffer.clear();
+                if (limit - position < buffer.capacity()) {
+                    buffer.limit((int) (limit - position));
+                }
+                int len = channel.read(buffer, position);
+                if (len <= 0) {
+                    throw new IOException("unexpected end of file at " + position);
+                }
+                digest.update(buffer.array(), 0, len);
+                position += len;
+            }
+        } finally {
+            file.close();
+        }
+        drainPending();
+    }
+
+    /**
+     * 完成计算，之后不能再调用{@link #update(ByteBuffer, long)}和{@link #fold(String, long, long)}
+     */
+    synchronized byte[] digest() {
+        return digest.digest();
+    }
+
+    /**
+     * @param expected 十六进制或Base64格式的摘要
+     */
+    static boolean matches(byte[] actual, String expected) {
+        if (TextUtils.isEmpty(expected)) {
+            return false;
+        }
+        expected = expected.trim();
+        if (expected.length() == actual.length * 2 && isHex(expected)) {
+            return ChecksumUtil.toHex(actual).equalsIgnoreCase(expected);
+        }
+        return Base64.encodeToString(actual, Base64.NO_WRAP).equals(expected);
+    }
+
+    /**
+     * 从Digest响应头（RFC 3230，例如"MD5=xxx,SHA-256=xxx"）中取出指定算法的值
+     * @param algorithm MessageDigest的算法名
+     */
+    static String parseDigestHeader(String header, String algorithm) {
+        if (TextUtils.isEmpty(header)) {
+            return null;
+        }
+        // RFC 3230中SHA-1的名称为SHA
+        String name = "SHA-1".equalsIgnoreCase(algorithm) ? "SHA" : algorithm;
+        for (String item : header.split(",")) {
+            int index = item.indexOf('=');
+            if (index > 0 && item.substring(0, index).trim().equalsIgnoreCase(name)) {
+                return item.substring(index + 1).trim();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 从Content-Digest响应头（RFC 9530，例如"sha-256=:xxx:, sha-512=:xxx:"）中取出一个支持的摘要。
+     * 与Digest不同，206响应的Content-Digest是本次响应内容（即请求的范围）的摘要，可以用来校验单个块
+     * @return [MessageDigest的算法名, Base64格式的值]，没有支持的算法时返回null
+     */
+    static String[] parseContentDigest(String header) {
+        if (TextUtils.isEmpty(header)) {
+            return null;
+        }
+        for (String item : header.split(",")) {
+            int index = item.indexOf('=');
+            if (index <= 0) {
+                continue;
+            }
+            String name = item.substring(0, index).trim().toLowerCase();
+            String value = item.substring(index + 1).trim();
+            if (value.length() < 2 || value.charAt(0) != ':' || value.charAt(value.length() - 1) != ':') {
+                continue;
+            }
+            value = value.substring(1, value.length() - 1);
+            if ("sha-256".equals(name)) {
+                return new String[]{"SHA-256", value};
+            } else if ("sha-512".equals(name)) {
+                return new String[]{"SHA-512", value};
+            }
+        }
+        return null;
+    }
+
+    private static boolean isHex(String str) {
+        for (int i = 0; i < str.length(); i++) {
+            if (Character.digit(str.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
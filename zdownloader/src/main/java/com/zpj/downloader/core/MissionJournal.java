@@ -0,0 +1,324 @@
+package com.zpj.downloader.core;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * 任务的二进制日志，记录已完成的块。
+ * <p>
+ * 文件格式：头部（magic、版本、块大小、文件长度）之后是若干条已完成块区间记录，
+ * 每条记录为[起始块, 结束块, CRC32]。每完成一个块只在内存中追加一条记录并分配递增的序号，
+ * 检查点先用{@link #mark()}取得当前序号，把下载数据落盘后再用{@link #sync(long)}只写入并落盘序号不超过它的记录，
+ * 之后追加的块的数据不一定已经落盘，留到下一个检查点。
+ * 文件中的记录数超过阈值时在日志锁内读出已落盘的记录，合并区间后重写（写临时文件后重命名），
+ * 还没写入的记录不受影响。
+ * 读取时遇到不完整或校验失败的记录即停止，保证进程崩溃或断电后日志仍然可用。
+ * @author Z-P-J
+ */
+class MissionJournal {
+
+    private static final String TAG = MissionJournal.class.getSimpleName();
+
+    static final String JOURNAL_FILE_SUFFIX_NAME = ".journal";
+
+    private static final int MAGIC = 0x5A504A4C;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 8;
+    private static final int RECORD_SIZE = 8 + 8 + 4;
+
+    /**
+     * 文件中的记录数超过该值后合并日志
+     */
+    private static final int COMPACT_THRESHOLD = 1024;
+
+    private final File file;
+    private final ByteBuffer buffer = ByteBuffer.allocate(Math.max(HEADER_SIZE, RECORD_SIZE));
+    private final CRC32 crc32 = new CRC32();
+
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    /**
+     * 文件中的记录数
+     */
+    private int recordCount;
+
+    /**
+     * 还没写入文件的块，序号为{@link #synced} + 1 到 {@link #appended}
+     */
+    private long[] pending = new long[64];
+    private int pendingCount;
+
+    /**
+     * 最后追加的记录的序号
+     */
+    private long appended;
+
+    /**
+     * 最后写入文件并落盘的记录的序号
+     */
+    private long synced;
+
+    /**
+     * 日志已被删除（任务完成或被删除），之后的{@link #sync(long)}和{@link #compact(int, long)}不再重新打开文件，
+     * 避免已经排队的检查点在删除后重新创建日志文件。{@link #create(int, long)}和{@link #load(int, long)}会清除该标记
+     */
+    private boolean deleted;
+
+    MissionJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * 新建日志，已有的内容会被清除
+     */
+    synchronized void create(int blockSize, long length) throws IOException {
+        close();
+        deleted = false;
+        open();
+        reset(blockSize, length);
+        clearPending();
+    }
+
+    /**
+     * 读取日志中已完成的块区间
+     * @return 已完成的块区间[起始块, 结束块]，日志不存在或与任务不匹配时重新创建日志并返回空列表
+     */
+    synchronized List<long[]> load(int blockSize, long length) throws IOException {
+        List<long[]> ranges = new ArrayList<>();
+        close();
+        deleted = false;
+        open();
+        clearPending();
+        long size = channel.size();
+        buffer.clear().limit(HEADER_SIZE);
+        if (size < HEADER_SIZE || channel.read(buffer, 0) != HEADER_SIZE) {
+            Log.d(TAG, "load: no valid header " + file);
+            reset(blockSize, length);
+            return ranges;
+        }
+        buffer.flip();
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+                || buffer.getInt() != blockSize || buffer.getLong() != length) {
+            Log.d(TAG, "load: journal does not match mission " + file);
+            reset(blockSize, length);
+            return ranges;
+        }
+        long offset = readRecords(ranges);
+        // 丢弃尾部不完整的记录，之后的追加从有效位置开始
+        channel.truncate(offset);
+        channel.position(offset);
+        recordCount = ranges.size();
+        return ranges;
+    }
+
+    /**
+     * 追加一个已完成的块，只记录在内存中，O(1)
+     */
+    synchronized void append(long block) {
+        if (pendingCount == pending.length) {
+            pending = Arrays.copyOf(pending, pendingCount * 2);
+        }
+        pending[pendingCount++] = block;
+        appended++;
+    }
+
+    /**
+     * @return 最后追加的记录的序号，在下载数据落盘前调用，之后用{@link #sync(long)}只落盘到该序号为止的记录
+     */
+    synchronized long mark() {
+        return appended;
+    }
+
+    synchronized boolean shouldCompact() {
+        return !deleted && recordCount > COMPACT_THRESHOLD;
+    }
+
+    /**
+     * 把序号不超过mark的记录写入文件并落盘，mark之后追加的记录留在内存中
+     */
+    synchronized void sync(long mark) throws IOException {
+        int count = (int) (Math.min(mark, appended) - synced);
+        if (count <= 0 || deleted) {
+            return;
+        }
+        if (channel == null) {
+            open();
+        }
+        channel.position(channel.size());
+        for (int i = 0; i < count; i++) {
+            writeRecord(channel, pending[i], pending[i]);
+        }
+        channel.force(false);
+        System.arraycopy(pending, count, pending, 0, pendingCount - count);
+        pendingCount -= count;
+        synced += count;
+        recordCount += count;
+    }
+
+    /**
+     * 在日志锁内读出文件中的记录，合并成区间后重写日志，整个过程中不会有记录被写入文件
+     */
+    synchronized void compact(int blockSize, long length) throws IOException {
+        if (deleted) {
+            return;
+        }
+        if (channel == null) {
+            open();
+        }
+        List<long[]> records = new ArrayList<>();
+        readRecords(records);
+        List<long[]> ranges = merge(records);
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile tmpFile = new RandomAccessFile(tmp, "rw");
+        try {
+            FileChannel tmpChannel = tmpFile.getChannel();
+            tmpChannel.truncate(0);
+            writeHeader(tmpChannel, blockSize, length);
+            for (long[] range : ranges) {
+                writeRecord(tmpChannel, range[0], range[1]);
+            }
+            tmpChannel.force(false);
+        } finally {
+            tmpFile.close();
+        }
+        close();
+        if (!tmp.renameTo(file)) {
+            throw new IOException("rename journal failed: " + file);
+        }
+        open();
+        channel.position(channel.size());
+        recordCount = ranges.size();
+        Log.d(TAG, "compact: " + records.size() + " records -> " + ranges.size() + " ranges");
+    }
+
+    synchronized void close() {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        raf = null;
+        channel = null;
+    }
+
+    synchronized void delete() {
+        close();
+        clearPending();
+        recordCount = 0;
+        deleted = true;
+        if (file.exists()) {
+            file.delete();
+        }
+    }
+
+    private void reset(int blockSize, long length) throws IOException {
+        channel.truncate(0);
+        writeHeader(channel, blockSize, length);
+        channel.force(false);
+        recordCount = 0;
+    }
+
+    private void clearPending() {
+        pendingCount = 0;
+        synced = appended;
+    }
+
+    /**
+     * 从头部之后依次读取记录，遇到不完整或校验失败的记录即停止
+     * @return 最后一条有效记录之后的位置
+     */
+    private long readRecords(List<long[]> records) throws IOException {
+        long size = channel.size();
+        long offset = HEADER_SIZE;
+        while (offset + RECORD_SIZE <= size) {
+            buffer.clear().limit(RECORD_SIZE);
+            if (channel.read(buffer, offset) != RECORD_SIZE) {
+                break;
+            }
+            buffer.flip();
+            long from = buffer.getLong();
+            long to = buffer.getLong();
+            int crc = buffer.getInt();
+            if (crc != checksum(from, to) || from > to) {
+                Log.d(TAG, "readRecords: torn record at " + offset);
+                break;
+            }
+            records.add(new long[]{from, to});
+            offset += RECORD_SIZE;
+        }
+        return offset;
+    }
+
+    /**
+     * 把记录按起始块排序，合并重叠和相邻的区间
+     */
+    static List<long[]> merge(List<long[]> records) {
+        List<long[]> sorted = new ArrayList<>(records);
+        Collections.sort(sorted, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] o1, long[] o2) {
+                return o1[0] < o2[0] ? -1 : (o1[0] == o2[0] ? 0 : 1);
+            }
+        });
+        List<long[]> ranges = new ArrayList<>();
+        long[] last = null;
+        for (long[] record : sorted) {
+            if (last != null && record[0] <= last[1] + 1) {
+                last[1] = Math.max(last[1], record[1]);
+            } else {
+                last = new long[]{record[0], record[1]};
+                ranges.add(last);
+            }
+        }
+        return ranges;
+    }
+
+    private void open() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+    }
+
+    private void writeHeader(FileChannel target, int blockSize, long length) throws IOException {
+        buffer.clear();
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(blockSize).putLong(length);
+        buffer.flip();
+        target.position(0);
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+    }
+
+    private void writeRecord(FileChannel target, long from, long to) throws IOException {
+        buffer.clear();
+        buffer.putLong(from).putLong(to).putInt(checksum(from, to));
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+    }
+
+    private int checksum(long from, long to) {
+        crc32.reset();
+        for (int i = 56; i >= 0; i -= 8) {
+            crc32.update((int) (from >>> i));
+        }
+        for (int i = 56; i >= 0; i -= 8) {
+            crc32.update((int) (to >>> i));
+        }
+        return (int) crc32.getValue();
+    }
+
+}
@@ -0,0 +1,253 @@
+package com.zpj.downloader.core;
+
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 任务登记表。
+ * <p>
+ * 按uuid、链接（原始链接和重定向后的链接）和文件路径建立哈希索引，查找任务不需要遍历所有任务；
+ * 任务列表按创建时间从新到旧排列，插入时直接放到对应位置，获取列表时不需要再排序。
+ * 任务列表是写时复制的：每次修改都在this保护下复制出新列表再整体替换，
+ * 读取和遍历不加锁，得到的是某一时刻完整一致的快照，遍历过程中其他线程增删任务不会抛出ConcurrentModificationException。
+ * @author Z-P-J
+ */
+class MissionRegistry {
+
+    private static final MissionRegistry INSTANCE = new MissionRegistry();
+
+    private static final Comparator<DownloadMission> NEWEST_FIRST = new Comparator<DownloadMission>() {
+        @Override
+        public int compare(DownloadMission o1, DownloadMission o2) {
+            return o1.getCreateTime() > o2.getCreateTime() ? -1 : (o1.getCreateTime() == o2.getCreateTime() ? 0 : 1);
+        }
+    };
+
+    private final Map<String, DownloadMission> uuidIndex = new ConcurrentHashMap<>();
+
+    /**
+     * 同一链接可以对应多个文件名不同的任务
+     */
+    private final Map<String, Set<DownloadMission>> urlIndex = new ConcurrentHashMap<>();
+
+    private final Map<String, DownloadMission> pathIndex = new ConcurrentHashMap<>();
+
+    /**
+     * 任务当前登记在索引中的键，任务的链接或文件名变化后用来移除旧的键
+     */
+    private final Map<DownloadMission, Keys> keys = new ConcurrentHashMap<>();
+
+    /**
+     * 按创建时间从新到旧排列的任务，只读，修改时整体替换
+     */
+    private volatile List<DownloadMission> missions = Collections.emptyList();
+
+    private MissionRegistry() {
+
+    }
+
+    static MissionRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * 登记任务
+     * @return 任务在列表中的位置
+     */
+    synchronized int add(DownloadMission mission) {
+        if (keys.containsKey(mission)) {
+            return missions.indexOf(mission);
+        }
+        List<DownloadMission> missions = this.missions;
+        // 新任务的创建时间总是最新的，二分查找通常直接落在列表头部
+        int low = 0;
+        int high = missions.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (NEWEST_FIRST.compare(missions.get(mid), mission) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        List<DownloadMission> copy = new ArrayList<>(missions.size() + 1);
+        copy.addAll(missions.subList(0, low));
+        copy.add(mission);
+        copy.addAll(missions.subList(low, missions.size()));
+        publish(copy);
+        index(mission);
+        return low;
+    }
+
+    /**
+     * 批量登记任务，所有任务加入后只排序一次
+     */
+    synchronized void addAll(Collection<DownloadMission> missions) {
+        List<DownloadMission> copy = new ArrayList<>(this.missions.size() + missions.size());
+        copy.addAll(this.missions);
+        for (DownloadMission mission : missions) {
+            if (!keys.containsKey(mission)) {
+                copy.add(mission);
+                index(mission);
+            }
+        }
+        Collections.sort(copy, NEWEST_FIRST);
+        publish(copy);
+    }
+
+    synchronized boolean remove(DownloadMission mission) {
+        if (mission == null || !keys.containsKey(mission)) {
+            return false;
+        }
+        List<DownloadMission> copy = new ArrayList<>(missions);
+        copy.remove(mission);
+        publish(copy);
+        Keys old = keys.remove(mission);
+        if (old != null) {
+            uuidIndex.remove(mission.getUuid());
+            unindexUrl(old.originUrl, mission);
+            unindexUrl(old.redirectUrl, mission);
+            unindexPath(old.path, mission);
+        }
+        return true;
+    }
+
+    synchronized void clear() {
+        missions = Collections.emptyList();
+        keys.clear();
+        uuidIndex.clear();
+        urlIndex.clear();
+        pathIndex.clear();
+    }
+
+    /**
+     * 任务的重定向链接或文件名变化后更新索引
+     */
+    synchronized void reindex(DownloadMission mission) {
+        if (keys.containsKey(mission)) {
+            index(mission);
+        }
+    }
+
+    DownloadMission get(int i) {
+        return missions.get(i);
+    }
+
+    DownloadMission get(String uuid) {
+        return uuid == null ? null : uuidIndex.get(uuid);
+    }
+
+    /**
+     * @return 原始链接或重定向后的链接为url的任务
+     */
+    List<DownloadMission> getByUrl(String url) {
+        Set<DownloadMission> set = url == null ? null : urlIndex.get(url.trim());
+        if (set == null || set.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(set);
+    }
+
+    DownloadMission getByPath(String path) {
+        return path == null ? null : pathIndex.get(path);
+    }
+
+    int size() {
+        return missions.size();
+    }
+
+    /**
+     * @return 当前任务列表的只读快照，按创建时间从新到旧排列，之后的增删不会影响已获取的快照
+     */
+    List<DownloadMission> snapshot() {
+        return missions;
+    }
+
+    private void publish(List<DownloadMission> missions) {
+        this.missions = Collections.unmodifiableList(missions);
+    }
+
+    private void index(DownloadMission mission) {
+        Keys now = new Keys(mission);
+        Keys old = keys.put(mission, now);
+        uuidIndex.put(mission.getUuid(), mission);
+        if (old != null) {
+            // 只移除不再使用的键，原始链接与重定向链接相同时两个键对应同一项
+            if (!now.hasUrl(old.originUrl)) {
+                unindexUrl(old.originUrl, mission);
+            }
+            if (!now.hasUrl(old.redirectUrl)) {
+                unindexUrl(old.redirectUrl, mission);
+            }
+            if (!TextUtils.equals(old.path, now.path)) {
+                unindexPath(old.path, mission);
+            }
+        }
+        indexUrl(now.originUrl, mission);
+        indexUrl(now.redirectUrl, mission);
+        if (now.path != null) {
+            pathIndex.put(now.path, mission);
+        }
+    }
+
+    private void indexUrl(String url, DownloadMission mission) {
+        if (TextUtils.isEmpty(url)) {
+            return;
+        }
+        Set<DownloadMission> set = urlIndex.get(url);
+        if (set == null) {
+            set = Collections.newSetFromMap(new ConcurrentHashMap<DownloadMission, Boolean>());
+            urlIndex.put(url, set);
+        }
+        set.add(mission);
+    }
+
+    private void unindexUrl(String url, DownloadMission mission) {
+        if (TextUtils.isEmpty(url)) {
+            return;
+        }
+        Set<DownloadMission> set = urlIndex.get(url);
+        if (set != null) {
+            set.remove(mission);
+            if (set.isEmpty()) {
+                urlIndex.remove(url);
+            }
+        }
+    }
+
+    private void unindexPath(String path, DownloadMission mission) {
+        if (path != null && pathIndex.get(path) == mission) {
+            pathIndex.remove(path);
+        }
+    }
+
+    private static class Keys {
+
+        private final String originUrl;
+        private final String redirectUrl;
+        private final String path;
+
+        private Keys(DownloadMission mission) {
+            originUrl = trim(mission.getOriginUrl());
+            redirectUrl = trim(mission.getRedirectUrl());
+            path = TextUtils.isEmpty(mission.getTaskName()) ? null : mission.getFilePath();
+        }
+
+        private boolean hasUrl(String url) {
+            return TextUtils.equals(url, originUrl) || TextUtils.equals(url, redirectUrl);
+        }
+
+        private static String trim(String url) {
+            return url == null ? null : url.trim();
+        }
+    }
+
+}
@@ -0,0 +1,184 @@
+package com.zpj.downloader.core;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.zpj.downloader.config.DownloaderConfig;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * 任务调度。
+ * <p>
+ * 同时下载的任务数由{@link DownloaderConfig#getConcurrentMissionCount()}限定，超出的任务进入等待队列。
+ * 等待队列是按（优先级从高到低，进入队列的顺序）排列的堆，有任务结束时直接取出堆顶的任务开始下载，不需要遍历所有任务。
+ * 开启{@link DownloaderConfig#getPreemptive()}后，下载槽位已满时优先级更高的任务会抢占正在下载的优先级最低的任务，
+ * 被抢占的任务保留进度回到等待队列。
+ * @author Z-P-J
+ */
+class MissionScheduler {
+
+    private static final String TAG = MissionScheduler.class.getSimpleName();
+
+    private static final MissionScheduler INSTANCE = new MissionScheduler();
+
+    /**
+     * 正在下载的任务，堆顶是优先级最低、最晚开始的任务，即最先被抢占的任务
+     */
+    private final PriorityQueue<Entry> running = new PriorityQueue<>(11, new Comparator<Entry>() {
+        @Override
+        public int compare(Entry o1, Entry o2) {
+            if (o1.priority != o2.priority) {
+                return o1.priority < o2.priority ? -1 : 1;
+            }
+            return o1.sequence > o2.sequence ? -1 : (o1.sequence == o2.sequence ? 0 : 1);
+        }
+    });
+
+    /**
+     * 等待中的任务，堆顶是优先级最高、最早进入队列的任务
+     */
+    private final PriorityQueue<Entry> waiting = new PriorityQueue<>(11, new Comparator<Entry>() {
+        @Override
+        public int compare(Entry o1, Entry o2) {
+            if (o1.priority != o2.priority) {
+                return o1.priority > o2.priority ? -1 : 1;
+            }
+            return o1.sequence < o2.sequence ? -1 : (o1.sequence == o2.sequence ? 0 : 1);
+        }
+    });
+
+    private final Map<DownloadMission, Entry> entries = new HashMap<>();
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private long sequence;
+
+    private MissionScheduler() {
+
+    }
+
+    static MissionScheduler getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * 任务开始下载前申请下载槽位
+     * @return 是否可以立即开始下载，返回false时任务已进入等待队列
+     */
+    boolean acquire(DownloadMission mission) {
+        DownloadMission preempted = null;
+        synchronized (this) {
+            Entry entry = entries.get(mission);
+            if (entry != null) {
+                // 已经在下载或等待中，等待中的任务保持原来的排队位置
+                return entry.running;
+            }
+            entry = new Entry(mission, mission.getMissionConfig().getPriority(), sequence++);
+            entries.put(mission, entry);
+            if (running.size() < getConcurrentMissionCount()) {
+                startEntry(entry);
+                return true;
+            }
+            Entry victim = running.peek();
+            if (getConfig().getPreemptive() && victim != null && victim.priority < entry.priority) {
+                // 被抢占的任务保留原来的顺序，在同优先级的等待任务中最先恢复
+                running.poll();
+                victim.running = false;
+                waiting.add(victim);
+                preempted = victim.mission;
+                startEntry(entry);
+            } else {
+                waiting.add(entry);
+                return false;
+            }
+        }
+        Log.d(TAG, mission.getTaskName() + " preempts " + preempted.getTaskName());
+        preempted.waiting();
+        return true;
+    }
+
+    /**
+     * 任务暂停、完成或出错后释放下载槽位（或移出等待队列），并开始等待队列中优先级最高的任务。
+     * release通常在另一个任务的同步方法中调用，下一个任务的start投递到主线程执行，
+     * 不在当前线程中同时持有两个任务的锁
+     */
+    void release(DownloadMission mission) {
+        final DownloadMission next;
+        synchronized (this) {
+            Entry entry = entries.remove(mission);
+            if (entry != null) {
+                if (entry.running) {
+                    running.remove(entry);
+                } else {
+                    waiting.remove(entry);
+                }
+            }
+            Entry head = running.size() < getConcurrentMissionCount() ? waiting.poll() : null;
+            if (head == null) {
+                return;
+            }
+            // 先占住槽位，任务start时acquire直接返回true，不会被其他任务抢走
+            startEntry(head);
+            next = head.mission;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                // 投递期间任务被暂停或删除时已经释放了预留的槽位，不再开始
+                if (isReserved(next)) {
+                    next.start();
+                }
+            }
+        });
+    }
+
+    private synchronized boolean isReserved(DownloadMission mission) {
+        Entry entry = entries.get(mission);
+        return entry != null && entry.running;
+    }
+
+    synchronized boolean isFull() {
+        return running.size() >= getConcurrentMissionCount();
+    }
+
+    synchronized int getRunningCount() {
+        return running.size();
+    }
+
+    synchronized int getWaitingCount() {
+        return waiting.size();
+    }
+
+    private void startEntry(Entry entry) {
+        entry.running = true;
+        running.add(entry);
+    }
+
+    private DownloaderConfig getConfig() {
+        return DownloadManagerImpl.getInstance().getDownloaderConfig();
+    }
+
+    private int getConcurrentMissionCount() {
+        return Math.max(1, getConfig().getConcurrentMissionCount());
+    }
+
+    private static class Entry {
+
+        private final DownloadMission mission;
+        private final int priority;
+        private final long sequence;
+        private boolean running;
+
+        private Entry(DownloadMission mission, int priority, long sequence) {
+            this.mission = mission;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+    }
+
+}
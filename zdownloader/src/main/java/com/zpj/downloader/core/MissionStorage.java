@@ -0,0 +1,181 @@
+package com.zpj.downloader.core;
+
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 任务的文件存储。
+ * <p>
+ * 同一任务的所有下载线程共享一个FileChannel，按位置写入（pwrite），不需要seek也不需要加锁。
+ * 第一个下载线程开始时打开文件，最后一个下载线程退出时关闭文件。
+ * 同时统计写入磁盘的字节数和耗时，磁盘写入速度与网络速度分开计算，便于判断瓶颈在网络还是存储。
+ * 需要校验整个文件时，写入的数据同时累加到文件摘要中。
+ * @author Z-P-J
+ */
+class MissionStorage {
+
+    private static final String TAG = MissionStorage.class.getSimpleName();
+
+    private RandomAccessFile file;
+
+    private volatile FileChannel channel;
+
+    private int refCount;
+
+    private final AtomicLong writtenBytes = new AtomicLong();
+
+    private final AtomicLong writeNanos = new AtomicLong();
+
+    private volatile MissionDigest digest;
+
+    /**
+     * 创建文件并预先分配空间。
+     * <p>
+     * Android 5.0以上使用posix_fallocate真正分配磁盘块，空间不足时立即失败而不是下载到一半才失败，
+     * 同时减少文件碎片；文件系统不支持时退回setLength，得到的是稀疏文件。
+     * @param length 文件长度，未知时不分配
+     * @return 存储空间不足时返回false
+     */
+    static boolean allocate(String path, long length) throws IOException {
+        File parent = new File(path).getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            if (length <= 0 || file.length() >= length) {
+                return true;
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                try {
+                    Os.posix_fallocate(file.getFD(), 0, length);
+                    return true;
+                } catch (ErrnoException e) {
+                    if (e.errno == OsConstants.ENOSPC) {
+                        return false;
+                    }
+                    Log.d(TAG, "posix_fallocate failed, fall back to setLength: " + e.getMessage());
+                }
+            }
+            file.setLength(length);
+            return true;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * 下载线程开始时调用，必须与{@link #release()}成对调用
+     */
+    synchronized void retain(String path) throws IOException {
+        if (refCount == 0) {
+            file = new RandomAccessFile(path, "rw");
+            channel = file.getChannel();
+        }
+        refCount++;
+    }
+
+    /**
+     * 下载线程退出时调用，最后一个线程退出时关闭文件
+     */
+    synchronized void release() {
+        if (refCount <= 0) {
+            return;
+        }
+        if (--refCount == 0) {
+            channel = null;
+            try {
+                file.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            file = null;
+        }
+    }
+
+    /**
+     * 设置写入数据时累加的文件摘要，为null时不计算
+     */
+    void setDigest(MissionDigest digest) {
+        this.digest = digest;
+    }
+
+    /**
+     * 把src中剩余的数据全部写入文件的position处
+     * @return 写入的字节数
+     */
+    int write(ByteBuffer src, long position) throws IOException {
+        FileChannel channel = this.channel;
+        if (channel == null) {
+            throw new IOException("storage closed");
+        }
+        MissionDigest digest = this.digest;
+        ByteBuffer data = digest == null ? null : src.duplicate();
+        long startTime = System.nanoTime();
+        int written = 0;
+        while (src.hasRemaining()) {
+            written += channel.write(src, position + written);
+        }
+        writeNanos.addAndGet(System.nanoTime() - startTime);
+        writtenBytes.addAndGet(written);
+        if (data != null) {
+            digest.update(data, position);
+        }
+        return written;
+    }
+
+    int write(byte[] b, int off, int len, long position) throws IOException {
+        return write(ByteBuffer.wrap(b, off, len), position);
+    }
+
+    /**
+     * 截断文件，丢弃size之后的数据
+     */
+    synchronized void truncate(long size) throws IOException {
+        if (channel != null && channel.size() > size) {
+            channel.truncate(size);
+        }
+    }
+
+    /**
+     * 把已写入的数据落盘，文件未打开时通过path打开后落盘
+     */
+    synchronized void force(String path) throws IOException {
+        if (channel != null) {
+            channel.force(false);
+            return;
+        }
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            file.getChannel().force(false);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * @return 写入磁盘的总字节数
+     */
+    long getWrittenBytes() {
+        return writtenBytes.get();
+    }
+
+    /**
+     * @return 磁盘写入速度（字节/秒），按实际花在写入上的时间计算，与网络速度无关
+     */
+    long getWriteSpeed() {
+        long nanos = writeNanos.get();
+        return nanos <= 0 ? 0 : (long) (writtenBytes.get() * 1e9 / nanos);
+    }
+
+}
@@ -0,0 +1,96 @@
+package com.zpj.downloader.core;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * 批量添加任务时的初始化队列。
+ * <p>
+ * 每个任务初始化时都要先发请求获取文件信息，一次添加几百个任务时同时发出的请求会占满线程池和连接。
+ * 批量添加的任务先进入队列，同时初始化的任务数不超过{@link com.zpj.downloader.config.DownloaderConfig#getMaxProbeCount()}，
+ * 一个任务获取到文件信息或初始化出错后再开始初始化队列中的下一个任务。
+ * @author Z-P-J
+ */
+class ProbeQueue {
+
+    private static final String TAG = ProbeQueue.class.getSimpleName();
+
+    private static final ProbeQueue INSTANCE = new ProbeQueue();
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private final Queue<DownloadMission> pending = new ArrayDeque<>();
+
+    private final Set<DownloadMission> probing = new HashSet<>();
+
+    private ProbeQueue() {
+
+    }
+
+    static ProbeQueue getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * 加入队列，任务信息已经保存，初始化时不再重复保存
+     */
+    void submit(Collection<DownloadMission> missions) {
+        synchronized (this) {
+            pending.addAll(missions);
+        }
+        drain();
+    }
+
+    /**
+     * 任务获取到文件信息或初始化出错后调用，不是通过队列初始化的任务直接忽略
+     */
+    void finish(DownloadMission mission) {
+        synchronized (this) {
+            if (!probing.remove(mission)) {
+                return;
+            }
+        }
+        drain();
+    }
+
+    synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    private void drain() {
+        final List<DownloadMission> next = new ArrayList<>();
+        synchronized (this) {
+            int max = Math.max(1, DownloadManagerImpl.getInstance().getDownloaderConfig().getMaxProbeCount());
+            while (probing.size() < max && !pending.isEmpty()) {
+                DownloadMission mission = pending.poll();
+                // 排队期间被删除的任务不再初始化
+                if (mission.isIniting() && MissionRegistry.getInstance().get(mission.getUuid()) == mission) {
+                    probing.add(mission);
+                    next.add(mission);
+                }
+            }
+        }
+        if (next.isEmpty()) {
+            return;
+        }
+        Log.d(TAG, "probe " + next.size() + " missions, pending=" + getPendingCount());
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (DownloadMission mission : next) {
+                    mission.init(false);
+                }
+            }
+        });
+    }
+
+}
@@ -0,0 +1,45 @@
+package com.zpj.downloader.core;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 分段的下载进度计数器。每个下载线程持有自己的{@link Cell}，读取数据时只累加自己的计数，
+ * 不需要获取任务的锁；进度刷新时再由{@link #drain()}把所有计数汇总。
+ * @author Z-P-J
+ */
+class ProgressCounter {
+
+    private final CopyOnWriteArrayList<Cell> cells = new CopyOnWriteArrayList<>();
+
+    Cell newCell() {
+        Cell cell = new Cell();
+        cells.add(cell);
+        return cell;
+    }
+
+    void removeCell(Cell cell) {
+        cells.remove(cell);
+    }
+
+    /**
+     * 取出所有线程自上次汇总以来的增量并清零
+     */
+    long drain() {
+        long sum = 0;
+        for (Cell cell : cells) {
+            sum += cell.value.getAndSet(0);
+        }
+        return sum;
+    }
+
+    static class Cell {
+
+        private final AtomicLong value = new AtomicLong(0);
+
+        void add(long delta) {
+            value.addAndGet(delta);
+        }
+    }
+
+}
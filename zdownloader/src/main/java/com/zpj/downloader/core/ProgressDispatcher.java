@@ -0,0 +1,113 @@
+package com.zpj.downloader.core;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.zpj.downloader.constant.Error;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * 在主线程中分发任务的状态和进度。
+ * <p>
+ * 状态变化（开始、暂停、完成、出错等）按顺序立即分发；进度按任务合并，
+ * 同一帧内多次更新的任务只回调一次，所有任务的进度每{@link #FRAME_INTERVAL}毫秒最多分发一帧，
+ * 下载的任务再多也只占用一个主线程消息。
+ * @author Z-P-J
+ */
+class ProgressDispatcher {
+
+    /**
+     * 两帧进度之间的最小间隔（毫秒）
+     */
+    private static final long FRAME_INTERVAL = 100;
+
+    private static final ProgressDispatcher INSTANCE = new ProgressDispatcher();
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    /**
+     * 等待分发进度的任务，LinkedHashSet保证同一任务在一帧内只出现一次并保持提交顺序
+     */
+    private final Set<DownloadMission> pendingMissions = new LinkedHashSet<>();
+
+    /**
+     * 只在主线程中使用，避免每帧创建新的列表
+     */
+    private final ArrayList<DownloadMission> frame = new ArrayList<>();
+
+    private boolean scheduled;
+
+    private long lastFrameTime;
+
+    private final Runnable frameRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (pendingMissions) {
+                frame.addAll(pendingMissions);
+                pendingMissions.clear();
+                scheduled = false;
+                lastFrameTime = SystemClock.uptimeMillis();
+            }
+            for (DownloadMission mission : frame) {
+                if (mission.isRunning()) {
+                    mission.dispatchProgress();
+                }
+            }
+            frame.clear();
+        }
+    };
+
+    private ProgressDispatcher() {
+
+    }
+
+    static ProgressDispatcher getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * 任务进度已更新，在下一帧中分发
+     */
+    void postProgress(DownloadMission mission) {
+        synchronized (pendingMissions) {
+            pendingMissions.add(mission);
+            if (!scheduled) {
+                scheduled = true;
+                long delay = lastFrameTime + FRAME_INTERVAL - SystemClock.uptimeMillis();
+                handler.postDelayed(frameRunnable, Math.max(0, delay));
+            }
+        }
+    }
+
+    void postStatus(final DownloadMission mission, final DownloadMission.MissionStatus status) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                mission.dispatchStatus(status);
+            }
+        });
+    }
+
+    void postError(final DownloadMission mission, final Error e) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                mission.dispatchError(e);
+            }
+        });
+    }
+
+    /**
+     * 任务被删除时移除还未分发的进度
+     */
+    void cancel(DownloadMission mission) {
+        synchronized (pendingMissions) {
+            pendingMissions.remove(mission);
+        }
+    }
+
+}
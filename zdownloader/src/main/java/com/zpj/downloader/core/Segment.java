@@ -0,0 +1,143 @@
+package com.zpj.downloader.core;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 下载片段。一个片段对应一个块，或者块被拆分之后的一部分。
+ * 空闲线程可以通过{@link #split(long)}拿走正在下载的片段的后半段。
+ * @author Z-P-J
+ */
+class Segment {
+
+    /**
+     * 所属块的序号
+     */
+    private final long block;
+
+    /**
+     * 同一个块被拆分出的所有片段共享的未完成计数
+     */
+    private final AtomicInteger parts;
+
+    /**
+     * 下一个待写入字节的位置
+     */
+    private long position;
+
+    /**
+     * 片段最后一个字节的位置（包含），被拆分时会变小
+     */
+    private long end;
+
+    private long startTime;
+
+    private long startPosition;
+
+    /**
+     * 该片段校验失败的次数
+     */
+    private int verifyFailures;
+
+    Segment(long block, long start, long end) {
+        this(block, start, end, new AtomicInteger(1));
+    }
+
+    private Segment(long block, long start, long end, AtomicInteger parts) {
+        this.block = block;
+        this.position = start;
+        this.end = end;
+        this.parts = parts;
+        this.startPosition = start;
+    }
+
+    long getBlock() {
+        return block;
+    }
+
+    synchronized long getPosition() {
+        return position;
+    }
+
+    synchronized long getEnd() {
+        return end;
+    }
+
+    synchronized long getRemaining() {
+        return end - position + 1;
+    }
+
+    synchronized boolean isFinished() {
+        return position > end;
+    }
+
+    /**
+     * 开始（或重新开始）下载该片段时调用，用于估算剩余时间
+     */
+    synchronized void onStart() {
+        startTime = System.currentTimeMillis();
+        startPosition = position;
+    }
+
+    /**
+     * 认领刚读取到的数据，超出片段范围的部分（被拆分走的部分）不会被认领。
+     * @return 可以写入的字节数，写入位置为调用前的{@link #getPosition()}
+     */
+    synchronized int claim(int len) {
+        long remaining = end - position + 1;
+        if (remaining <= 0) {
+            return 0;
+        }
+        if (len > remaining) {
+            len = (int) remaining;
+        }
+        position += len;
+        return len;
+    }
+
+    /**
+     * 校验失败后回退到position重新下载
+     * @return 该片段累计校验失败的次数
+     */
+    synchronized int rewind(long position) {
+        this.position = position;
+        return ++verifyFailures;
+    }
+
+    /**
+     * 预计剩余下载时间（毫秒），还没有速度数据时返回{@link Long#MAX_VALUE}
+     */
+    synchronized long getEstimatedTime() {
+        long downloaded = position - startPosition;
+        long elapsed = System.currentTimeMillis() - startTime;
+        if (downloaded <= 0 || elapsed <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return (end - position + 1) * elapsed / downloaded;
+    }
+
+    /**
+     * 把剩余部分拆成两半，当前片段保留前一半，返回后一半
+     * @param minSize 拆分后每一半的最小长度
+     * @return 后一半片段，剩余部分太小时返回null
+     */
+    synchronized Segment split(long minSize) {
+        long remaining = end - position + 1;
+        if (remaining < 2 * minSize) {
+            return null;
+        }
+        long mid = position + remaining / 2;
+        Segment tail = new Segment(block, mid, end, parts);
+        parts.incrementAndGet();
+        end = mid - 1;
+        return tail;
+    }
+
+    /**
+     * 片段下载完成
+     * @return 所属块的所有片段是否都已完成
+     */
+    boolean finish() {
+        return parts.decrementAndGet() == 0;
+    }
+
+}
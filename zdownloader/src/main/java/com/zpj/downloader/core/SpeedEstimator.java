@@ -0,0 +1,120 @@
+package com.zpj.downloader.core;
+
+/**
+ * 下载速度估算。
+ * <p>
+ * 最近{@link #WINDOW_SIZE}个进度周期的采样保存在固定大小的环形数组中，任务下载多久占用的内存都不变。
+ * 提供三种速度：最近一个周期的瞬时速度、指数加权移动平均（EWMA）的平滑速度和滑动窗口内的平均速度，
+ * 剩余时间按平滑速度估算。
+ * @author Z-P-J
+ */
+class SpeedEstimator {
+
+    /**
+     * 滑动窗口的采样数
+     */
+    static final int WINDOW_SIZE = 10;
+
+    /**
+     * EWMA的平滑系数，越大越接近瞬时速度
+     */
+    private static final double ALPHA = 0.3;
+
+    private final long[] sampleBytes = new long[WINDOW_SIZE];
+    private final long[] sampleTimes = new long[WINDOW_SIZE];
+
+    /**
+     * 下一个采样写入的位置
+     */
+    private int index;
+    private int count;
+
+    private long instantSpeed;
+    private double smoothedSpeed = -1;
+
+    /**
+     * 添加一个采样
+     * @param bytes 采样周期内下载的字节数
+     * @param elapsed 采样周期的实际时长（毫秒）
+     */
+    synchronized void addSample(long bytes, long elapsed) {
+        if (elapsed <= 0) {
+            return;
+        }
+        bytes = Math.max(0, bytes);
+        sampleBytes[index] = bytes;
+        sampleTimes[index] = elapsed;
+        index = (index + 1) % WINDOW_SIZE;
+        if (count < WINDOW_SIZE) {
+            count++;
+        }
+        instantSpeed = bytes * 1000 / elapsed;
+        smoothedSpeed = smoothedSpeed < 0 ? instantSpeed : ALPHA * instantSpeed + (1 - ALPHA) * smoothedSpeed;
+    }
+
+    synchronized int getSampleCount() {
+        return count;
+    }
+
+    /**
+     * @return 最近一个周期的速度（字节/秒）
+     */
+    synchronized long getInstantSpeed() {
+        return instantSpeed;
+    }
+
+    /**
+     * @return 平滑后的速度（字节/秒）
+     */
+    synchronized long getSmoothedSpeed() {
+        return smoothedSpeed < 0 ? 0 : (long) smoothedSpeed;
+    }
+
+    /**
+     * @return 最近n个周期的平均速度（字节/秒），n不超过{@link #WINDOW_SIZE}
+     */
+    synchronized long getWindowSpeed(int n) {
+        n = Math.min(n, count);
+        long bytes = 0;
+        long time = 0;
+        for (int i = 1; i <= n; i++) {
+            int j = (index - i + WINDOW_SIZE) % WINDOW_SIZE;
+            bytes += sampleBytes[j];
+            time += sampleTimes[j];
+        }
+        return time <= 0 ? 0 : bytes * 1000 / time;
+    }
+
+    /**
+     * @return 整个滑动窗口内的平均速度（字节/秒）
+     */
+    long getWindowSpeed() {
+        return getWindowSpeed(WINDOW_SIZE);
+    }
+
+    /**
+     * @param remaining 剩余字节数
+     * @return 预计剩余时间（毫秒），速度未知时返回-1
+     */
+    long getEstimatedTime(long remaining) {
+        return estimateTime(remaining, getSmoothedSpeed());
+    }
+
+    static long estimateTime(long remaining, long speed) {
+        if (remaining <= 0) {
+            return 0;
+        }
+        if (speed <= 0) {
+            return -1;
+        }
+        return remaining * 1000 / speed;
+    }
+
+    synchronized void reset() {
+        index = 0;
+        count = 0;
+        instantSpeed = 0;
+        smoothedSpeed = -1;
+    }
+
+}
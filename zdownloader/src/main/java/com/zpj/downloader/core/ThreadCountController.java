@@ -0,0 +1,137 @@
+package com.zpj.downloader.core;
+
+import android.util.Log;
+
+/**
+ * 自适应线程数控制器（爬山法）。
+ * <p>
+ * 每{@link #WINDOW}个进度周期根据{@link SpeedEstimator}计算一次平均速度：增加线程后速度提升超过{@link #MIN_GAIN}就继续增加，
+ * 否则退回上一个线程数并保持一段时间，之后再尝试增加（已到上限时尝试减少）。
+ * 服务器返回429/503等限流响应时线程数立即减半，并在退避时间内不再增加。
+ * @author Z-P-J
+ */
+class ThreadCountController {
+
+    private static final String TAG = ThreadCountController.class.getSimpleName();
+
+    /**
+     * 每次决策使用的进度周期数
+     */
+    private static final int WINDOW = 3;
+
+    /**
+     * 认为线程数变化有效的最小速度变化比例
+     */
+    private static final float MIN_GAIN = 0.05f;
+
+    /**
+     * 找到合适的线程数后保持的决策周期数
+     */
+    private static final int HOLD_WINDOWS = 5;
+
+    private static final int GROW = 1;
+    private static final int HOLD = 0;
+    private static final int SHRINK = -1;
+
+    private final int minThreads;
+    private final int maxThreads;
+
+    private int target;
+    private int direction = GROW;
+    private int holdWindows;
+    private int samples;
+    private long lastThroughput = -1;
+    private long throttledUntil;
+
+    ThreadCountController(int initThreads, int minThreads, int maxThreads) {
+        this.minThreads = Math.max(1, minThreads);
+        this.maxThreads = Math.max(this.minThreads, maxThreads);
+        this.target = Math.min(this.maxThreads, Math.max(this.minThreads, initThreads));
+    }
+
+    synchronized int getTarget() {
+        return target;
+    }
+
+    /**
+     * 服务器限流，线程数减半
+     * @param backoff 退避时间（毫秒），期间不会增加线程
+     */
+    synchronized int onThrottled(long backoff) {
+        target = Math.max(minThreads, target / 2);
+        throttledUntil = System.currentTimeMillis() + backoff;
+        direction = HOLD;
+        holdWindows = HOLD_WINDOWS;
+        lastThroughput = -1;
+        samples = 0;
+        Log.d(TAG, "onThrottled target=" + target + " backoff=" + backoff);
+        return target;
+    }
+
+    /**
+     * 每个进度周期添加采样后调用一次
+     * @return 新的线程数
+     */
+    synchronized int update(SpeedEstimator estimator) {
+        if (++samples < WINDOW || estimator.getSampleCount() < WINDOW) {
+            return target;
+        }
+        samples = 0;
+        long throughput = estimator.getWindowSpeed(WINDOW);
+        if (System.currentTimeMillis() < throttledUntil) {
+            lastThroughput = throughput;
+            return target;
+        }
+        if (lastThroughput < 0) {
+            // 第一个周期只记录基准速度，然后开始尝试增加线程
+            lastThroughput = throughput;
+            if (direction == GROW) {
+                if (target < maxThreads) {
+                    target++;
+                } else {
+                    hold();
+                }
+            }
+            return target;
+        }
+        float gain = (throughput - lastThroughput) / (float) Math.max(1, lastThroughput);
+        int last = target;
+        if (direction == GROW) {
+            if (gain >= MIN_GAIN && target < maxThreads) {
+                target++;
+            } else {
+                if (gain < MIN_GAIN) {
+                    // 增加的线程没有带来速度提升，退回
+                    target = Math.max(minThreads, target - 1);
+                }
+                hold();
+            }
+        } else if (direction == SHRINK) {
+            if (gain <= -MIN_GAIN) {
+                // 减少线程后速度下降，恢复
+                target = Math.min(maxThreads, target + 1);
+            }
+            hold();
+        } else if (--holdWindows <= 0) {
+            if (target < maxThreads) {
+                direction = GROW;
+                target++;
+            } else if (target > minThreads) {
+                direction = SHRINK;
+                target--;
+            } else {
+                hold();
+            }
+        }
+        Log.d(TAG, "update throughput=" + throughput + " perThread=" + (throughput / Math.max(1, last))
+                + " gain=" + gain + " target=" + last + "->" + target);
+        lastThroughput = throughput;
+        return target;
+    }
+
+    private void hold() {
+        direction = HOLD;
+        holdWindows = HOLD_WINDOWS;
+    }
+
+}
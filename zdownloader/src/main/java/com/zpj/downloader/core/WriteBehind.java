@@ -0,0 +1,294 @@
+package com.zpj.downloader.core;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 下载数据的延迟写入。
+ * <p>
+ * 下载线程把读取到的数据放入{@link #BUFFER_SIZE}大小的缓冲区，缓冲区满后交给写入线程写入文件，
+ * 下载线程继续读取网络数据，不再为每次读取的几百字节调用一次write。
+ * 缓冲区从容量固定的缓冲池中获取，磁盘写入跟不上时缓冲池耗尽，下载线程阻塞在获取缓冲区上，
+ * 自然降低读取网络数据的速度，占用的内存不会超过缓冲池的大小。
+ * 每个缓冲区的结束位置按{@link #ALIGNMENT}对齐，除片段的最后一次写入外每次写入都是整页。
+ * @author Z-P-J
+ */
+class WriteBehind {
+
+    /**
+     * 缓冲区大小
+     */
+    static final int BUFFER_SIZE = 128 * 1024;
+
+    /**
+     * 写入位置的对齐大小，与文件系统的页大小一致
+     */
+    private static final int ALIGNMENT = 4096;
+
+    /**
+     * 每个下载线程平均可以使用的缓冲区数：一个正在填充，一个正在等待写入
+     */
+    private static final int BUFFERS_PER_THREAD = 2;
+
+    private static volatile WriteBehind sInstance;
+
+    private final LinkedBlockingQueue<ByteBuffer> freeBuffers = new LinkedBlockingQueue<>();
+
+    private final AtomicInteger allocatedBuffers = new AtomicInteger(0);
+
+    private final int maxBuffers;
+
+    private WriteBehind(int maxBuffers) {
+        this.maxBuffers = maxBuffers;
+    }
+
+    static WriteBehind getInstance() {
+        if (sInstance == null) {
+            synchronized (WriteBehind.class) {
+                if (sInstance == null) {
+                    int threadCount = DownloadManagerImpl.getInstance().getDownloaderConfig().getDownloadThreadCount();
+                    sInstance = new WriteBehind(Math.max(1, threadCount) * BUFFERS_PER_THREAD);
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * 每个下载线程创建一个，不能在线程之间共享
+     */
+    Writer newWriter(MissionStorage storage) {
+        return new Writer(storage);
+    }
+
+    /**
+     * 获取一个空闲的缓冲区，缓冲池耗尽时阻塞到写入线程归还缓冲区
+     */
+    private ByteBuffer obtain() throws IOException {
+        ByteBuffer buffer = freeBuffers.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        if (allocatedBuffers.incrementAndGet() <= maxBuffers) {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        allocatedBuffers.decrementAndGet();
+        try {
+            return freeBuffers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a write buffer");
+        }
+    }
+
+    private void recycle(ByteBuffer buffer) {
+        buffer.clear();
+        freeBuffers.offer(buffer);
+    }
+
+    /**
+     * 下载线程的写入器，按写入顺序把数据提交给写入线程。
+     * 一次连续写入以{@link #begin(long)}开始，以{@link #await()}结束，
+     * await返回后之前提交的数据都已经写入文件。
+     */
+    class Writer {
+
+        private final MissionStorage storage;
+
+        private final Object lock = new Object();
+
+        /**
+         * 已提交还未写入的缓冲区数，由lock保护
+         */
+        private int pending;
+
+        /**
+         * 写入线程中出现的错误，出错后该写入器后续提交的数据都会被丢弃，直到await抛出该错误
+         */
+        private volatile IOException error;
+
+        private ByteBuffer buffer;
+
+        /**
+         * 当前缓冲区第一个字节在文件中的位置
+         */
+        private long position;
+
+        /**
+         * 最近一次{@link #read(ReadableByteChannel, int)}读取的数据在缓冲区中的开始位置
+         */
+        private int readMark;
+
+        private Writer(MissionStorage storage) {
+            this.storage = storage;
+        }
+
+        /**
+         * 从文件的position处开始一次连续写入
+         */
+        void begin(long position) {
+            submit();
+            this.position = position;
+            if (buffer != null) {
+                buffer.limit(buffer.capacity() - alignmentOffset());
+            }
+        }
+
+        /**
+         * 复制数据到缓冲区，缓冲区满时提交
+         */
+        void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                ByteBuffer buffer = current();
+                int n = Math.min(len, buffer.remaining());
+                buffer.put(b, off, n);
+                off += n;
+                len -= n;
+                if (!buffer.hasRemaining()) {
+                    submit();
+                }
+            }
+        }
+
+        /**
+         * 直接读取数据到缓冲区，不需要再复制一次，读取的数据需要通过{@link #commit(int, MessageDigest)}确认
+         * @param max 最多读取的字节数
+         * @return 读取的字节数，读到结尾时返回-1
+         */
+        int read(ReadableByteChannel src, int max) throws IOException {
+            ByteBuffer buffer = current();
+            readMark = buffer.position();
+            buffer.limit(readMark + Math.min(max, buffer.remaining()));
+            try {
+                return src.read(buffer);
+            } finally {
+                buffer.limit(buffer.capacity() - alignmentOffset());
+                buffer.position(readMark);
+            }
+        }
+
+        /**
+         * 确认最近一次读取的前len个字节，其余部分丢弃
+         * @param md 不为空时同时用确认的数据更新摘要
+         */
+        void commit(int len, MessageDigest md) {
+            ByteBuffer buffer = this.buffer;
+            if (md != null) {
+                ByteBuffer data = buffer.duplicate();
+                data.limit(readMark + len);
+                md.update(data);
+            }
+            buffer.position(readMark + len);
+            if (!buffer.hasRemaining()) {
+                submit();
+            }
+        }
+
+        /**
+         * 提交缓冲区中的数据并等待之前提交的数据全部写入文件
+         * @throws IOException 写入线程中出现的错误，抛出后错误被清除，写入器可以继续使用
+         */
+        void await() throws IOException {
+            submit();
+            synchronized (lock) {
+                while (pending > 0) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("interrupted while waiting for pending writes");
+                    }
+                }
+            }
+            throwError();
+        }
+
+        /**
+         * 下载线程退出前调用，等待数据写入文件后才能关闭文件，等待过程不响应中断
+         */
+        void close() {
+            submit();
+            boolean interrupted = false;
+            synchronized (lock) {
+                while (pending > 0) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (buffer != null) {
+                recycle(buffer);
+                buffer = null;
+            }
+            try {
+                throwError();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void throwError() throws IOException {
+            IOException e = error;
+            if (e != null) {
+                error = null;
+                throw e;
+            }
+        }
+
+        private ByteBuffer current() throws IOException {
+            if (buffer == null) {
+                buffer = obtain();
+                // 第一个缓冲区的结束位置对齐到页边界，之后的写入都从页边界开始
+                buffer.limit(BUFFER_SIZE - alignmentOffset());
+            }
+            return buffer;
+        }
+
+        private int alignmentOffset() {
+            return (int) (position % ALIGNMENT);
+        }
+
+        private void submit() {
+            final ByteBuffer buffer = this.buffer;
+            if (buffer == null || buffer.position() == 0) {
+                return;
+            }
+            this.buffer = null;
+            buffer.flip();
+            final long position = this.position;
+            this.position += buffer.remaining();
+            synchronized (lock) {
+                pending++;
+            }
+            DownloadExecutor.getInstance().executeWrite(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (error == null) {
+                            storage.write(buffer, position);
+                        }
+                    } catch (IOException e) {
+                        error = e;
+                    } finally {
+                        recycle(buffer);
+                        synchronized (lock) {
+                            pending--;
+                            lock.notifyAll();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+}
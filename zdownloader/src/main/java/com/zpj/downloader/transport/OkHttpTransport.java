@@ -0,0 +1,215 @@
+package com.zpj.downloader.transport;
+
+import com.zpj.downloader.core.DownloadManagerImpl;
+import com.zpj.downloader.util.ssl.SSLContextUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.EventListener;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+/**
+ * 基于OkHttp的HTTP/2传输层。
+ * <p>
+ * 所有任务共用一个OkHttpClient（同一个ConnectionPool和Dispatcher），请求直接通过{@link OkHttpClient#newCall}发出。
+ * 服务器支持HTTP/2时同一主机的所有块请求（包括不同任务的请求）作为多个流复用同一个TCP连接，
+ * 不再为每个并发块建立TCP连接和TLS握手；服务器不支持时退回HTTP/1.1长连接。
+ * HTTPS通过ALPN协商HTTP/2，需要Android 5.0以上，更低的版本使用HTTP/1.1。
+ * 每个请求是否复用了连接由EventListener统计：获取到连接之前没有新建连接即为复用。
+ * <p>
+ * OkHttp不是ZDownloader的必需依赖，使用该传输层时需要添加com.squareup.okhttp3:okhttp:3.12.x
+ * （3.13以上的版本不支持Android 5.0以下）。
+ * @author Z-P-J
+ */
+public class OkHttpTransport implements Transport {
+
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+
+    private static final long KEEP_ALIVE_DURATION = 5;
+
+    private static final EventListener.Factory REUSE_LISTENER_FACTORY = new EventListener.Factory() {
+        @Override
+        public EventListener create(Call call) {
+            CallStats stats = call.request().tag(CallStats.class);
+            return stats == null ? EventListener.NONE : new ReuseListener(stats);
+        }
+    };
+
+    private final OkHttpClient customClient;
+
+    private volatile OkHttpClient client;
+
+    /**
+     * 按（连接超时，读取超时）缓存的client，与{@link #client}共用连接池和Dispatcher
+     */
+    private final Map<Long, OkHttpClient> timeoutClients = new ConcurrentHashMap<>();
+
+    public OkHttpTransport() {
+        this(null);
+    }
+
+    /**
+     * @param client 自定义的OkHttpClient，为null时使用默认配置，第一次请求时创建。
+     *               自定义client的EventListener会被替换为统计连接复用的EventListener
+     */
+    public OkHttpTransport(OkHttpClient client) {
+        this.customClient = client;
+    }
+
+    @Override
+    public Response execute(Request request) throws IOException {
+        okhttp3.Request.Builder builder = new okhttp3.Request.Builder()
+                .url(request.getUrl())
+                .get();
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            builder.header(header.getKey(), header.getValue());
+        }
+        if (request.getHeader("Accept-Encoding") == null) {
+            // 不让OkHttp自动请求gzip，否则Range和Content-Length对应的是压缩后的数据
+            builder.header("Accept-Encoding", "identity");
+        }
+        CallStats stats = new CallStats();
+        builder.tag(CallStats.class, stats);
+        okhttp3.Response response = getClient(request.getConnectTimeout(), request.getReadTimeout())
+                .newCall(builder.build())
+                .execute();
+        return new OkHttpResponse(response, stats.acquired && !stats.connected);
+    }
+
+    @Override
+    public boolean isMultiplexed() {
+        return true;
+    }
+
+    @Override
+    public int getConnectionCount() {
+        OkHttpClient client = this.client;
+        return client == null ? 0 : client.connectionPool().connectionCount();
+    }
+
+    private OkHttpClient getClient() {
+        if (client == null) {
+            synchronized (this) {
+                if (client == null) {
+                    OkHttpClient.Builder builder = customClient != null ? customClient.newBuilder() : createClientBuilder();
+                    client = builder.eventListenerFactory(REUSE_LISTENER_FACTORY).build();
+                }
+            }
+        }
+        return client;
+    }
+
+    /**
+     * OkHttp不支持为单个请求设置超时，不同的超时使用从同一个client派生的client，连接池和Dispatcher仍然共用
+     */
+    private OkHttpClient getClient(int connectTimeout, int readTimeout) {
+        OkHttpClient client = getClient();
+        if (connectTimeout == client.connectTimeoutMillis() && readTimeout == client.readTimeoutMillis()) {
+            return client;
+        }
+        Long key = ((long) connectTimeout << 32) | (readTimeout & 0xFFFFFFFFL);
+        OkHttpClient derived = timeoutClients.get(key);
+        if (derived == null) {
+            derived = client.newBuilder()
+                    .connectTimeout(connectTimeout, TimeUnit.MILLISECONDS)
+                    .readTimeout(readTimeout, TimeUnit.MILLISECONDS)
+                    .build();
+            timeoutClients.put(key, derived);
+        }
+        return derived;
+    }
+
+    /**
+     * 与{@link UrlConnectionTransport}共用同一个SSLSocketFactory，只在创建client时设置一次
+     */
+    private static OkHttpClient.Builder createClientBuilder() {
+        return new OkHttpClient.Builder()
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_DURATION, TimeUnit.MINUTES))
+                .dispatcher(new Dispatcher())
+                // 证书由sslSocketFactory校验，这里的TrustManager只用于OkHttp整理证书链
+                .sslSocketFactory(SSLContextUtil.getSocketFactory(DownloadManagerImpl.getInstance().getContext()),
+                        SSLContextUtil.getDefaultTrustManager())
+                .hostnameVerifier(SSLContextUtil.HOSTNAME_VERIFIER);
+    }
+
+    /**
+     * 单个请求的连接情况，只在执行该请求的线程中读写
+     */
+    private static class CallStats {
+
+        private boolean connected;
+        private boolean acquired;
+    }
+
+    private static class ReuseListener extends EventListener {
+
+        private final CallStats stats;
+
+        private ReuseListener(CallStats stats) {
+            this.stats = stats;
+        }
+
+        @Override
+        public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+            stats.connected = true;
+        }
+
+        @Override
+        public void connectionAcquired(Call call, Connection connection) {
+            stats.acquired = true;
+        }
+    }
+
+    private static class OkHttpResponse implements Response {
+
+        private final okhttp3.Response response;
+        private final boolean reused;
+
+        private OkHttpResponse(okhttp3.Response response, boolean reused) {
+            this.response = response;
+            this.reused = reused;
+        }
+
+        @Override
+        public int getCode() {
+            return response.code();
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return response.header(name);
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            return response.body().byteStream();
+        }
+
+        @Override
+        public boolean isConnectionReused() {
+            return reused;
+        }
+
+        /**
+         * OkHttp自己判断连接能否复用：HTTP/2只取消该流，HTTP/1.1响应体没有读完时关闭连接
+         */
+        @Override
+        public void close(boolean reusable) {
+            response.close();
+        }
+    }
+
+}
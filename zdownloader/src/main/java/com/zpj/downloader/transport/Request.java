@@ -0,0 +1,70 @@
+package com.zpj.downloader.transport;
+
+import java.net.URL;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 传输层的下载请求，只包含下载需要的GET请求的信息
+ * @author Z-P-J
+ */
+public class Request {
+
+    private final URL url;
+
+    private final Map<String, String> headers = new LinkedHashMap<>();
+
+    private int connectTimeout;
+
+    private int readTimeout;
+
+    public Request(URL url) {
+        this.url = url;
+    }
+
+    public URL getUrl() {
+        return url;
+    }
+
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    /**
+     * @return 所有请求头，只读
+     */
+    public Map<String, String> getHeaders() {
+        return Collections.unmodifiableMap(headers);
+    }
+
+    public Request setHeader(String name, String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * @param connectTimeout 连接超时（毫秒）
+     */
+    public Request setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+        return this;
+    }
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * @param readTimeout 读取超时（毫秒）
+     */
+    public Request setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+        return this;
+    }
+
+}
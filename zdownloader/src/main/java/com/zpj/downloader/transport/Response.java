@@ -0,0 +1,32 @@
+package com.zpj.downloader.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 传输层返回的响应，已经读取了状态码和响应头，响应体由调用方读取后通过{@link #close(boolean)}释放
+ * @author Z-P-J
+ */
+public interface Response {
+
+    int getCode();
+
+    /**
+     * @return 响应头的值，没有该响应头时返回null
+     */
+    String getHeader(String name);
+
+    InputStream getBody() throws IOException;
+
+    /**
+     * @return 该请求是否复用了已有的连接（HTTP/1.1长连接或HTTP/2连接），传输层无法得知时返回false
+     */
+    boolean isConnectionReused();
+
+    /**
+     * 释放响应
+     * @param reusable 响应体是否已经完整读取，完整读取时底层连接可以留给下一个请求复用
+     */
+    void close(boolean reusable);
+
+}
@@ -0,0 +1,31 @@
+package com.zpj.downloader.transport;
+
+import java.io.IOException;
+
+/**
+ * 下载请求的传输层。
+ * <p>
+ * 所有下载请求（块请求、快速启动的探测请求、单线程任务的请求）都通过{@link #execute(Request)}发出，
+ * 默认实现{@link UrlConnectionTransport}使用系统的HttpURLConnection，每个并发请求占用一个TCP连接；
+ * {@link OkHttpTransport}支持HTTP/2，同一主机的所有请求复用一个连接。
+ * 同一个实例被所有任务共享，实现必须是线程安全的。
+ * @author Z-P-J
+ */
+public interface Transport {
+
+    /**
+     * 发出请求并读取状态码和响应头
+     */
+    Response execute(Request request) throws IOException;
+
+    /**
+     * @return 是否在一个连接上同时传输多个请求（HTTP/2）
+     */
+    boolean isMultiplexed();
+
+    /**
+     * @return 当前打开的连接数，无法统计时返回-1
+     */
+    int getConnectionCount();
+
+}
@@ -0,0 +1,102 @@
+package com.zpj.downloader.transport;
+
+import com.zpj.downloader.core.DownloadManagerImpl;
+import com.zpj.downloader.util.ssl.SSLContextUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+
+/**
+ * 使用系统HttpURLConnection的传输层，HTTP/1.1，长连接由HttpURLConnection内部的连接池复用
+ * @author Z-P-J
+ */
+public class UrlConnectionTransport implements Transport {
+
+    @Override
+    public Response execute(Request request) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) request.getUrl().openConnection();
+        if (conn instanceof HttpsURLConnection) {
+            // 共用同一个SSLSocketFactory，HTTPS长连接才能被复用
+            ((HttpsURLConnection) conn).setSSLSocketFactory(
+                    SSLContextUtil.getSocketFactory(DownloadManagerImpl.getInstance().getContext()));
+            ((HttpsURLConnection) conn).setHostnameVerifier(SSLContextUtil.HOSTNAME_VERIFIER);
+        }
+        conn.setConnectTimeout(request.getConnectTimeout());
+        conn.setReadTimeout(request.getReadTimeout());
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            conn.setRequestProperty(header.getKey(), header.getValue());
+        }
+        try {
+            return new UrlConnectionResponse(conn, conn.getResponseCode());
+        } catch (IOException e) {
+            conn.disconnect();
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean isMultiplexed() {
+        return false;
+    }
+
+    @Override
+    public int getConnectionCount() {
+        return -1;
+    }
+
+    private static class UrlConnectionResponse implements Response {
+
+        private final HttpURLConnection conn;
+        private final int code;
+
+        private UrlConnectionResponse(HttpURLConnection conn, int code) {
+            this.conn = conn;
+            this.code = code;
+        }
+
+        @Override
+        public int getCode() {
+            return code;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return conn.getHeaderField(name);
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            return conn.getInputStream();
+        }
+
+        /**
+         * HttpURLConnection不提供连接是否复用的信息
+         */
+        @Override
+        public boolean isConnectionReused() {
+            return false;
+        }
+
+        /**
+         * 响应体已经读完时只关闭输入流，底层socket回到HttpURLConnection的连接池中，
+         * 下一个请求可以直接复用，省去TCP和TLS握手
+         */
+        @Override
+        public void close(boolean reusable) {
+            if (reusable) {
+                try {
+                    conn.getInputStream().close();
+                    return;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            conn.disconnect();
+        }
+    }
+
+}
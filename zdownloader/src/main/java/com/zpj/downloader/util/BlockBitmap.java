@@ -0,0 +1,142 @@
+package com.zpj.downloader.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 记录块完成状态的位图。每个块只占用1个bit，50GB的文件按1MB分块也只需要约6KB内存。
+ * 持久化时使用{@link #toRanges()}得到的连续区间（游程编码），连续完成的块只占一条记录。
+ * @author Z-P-J
+ */
+public class BlockBitmap {
+
+    private static final int ADDRESS_BITS_PER_WORD = 6;
+    private static final int BITS_PER_WORD = 1 << ADDRESS_BITS_PER_WORD;
+
+    private long[] words;
+
+    private long cardinality;
+
+    public BlockBitmap() {
+        this(BITS_PER_WORD);
+    }
+
+    public BlockBitmap(long blocks) {
+        words = new long[wordIndex(Math.max(blocks, 1) - 1) + 1];
+    }
+
+    private static int wordIndex(long bit) {
+        return (int) (bit >>> ADDRESS_BITS_PER_WORD);
+    }
+
+    private void ensureCapacity(int wordIndex) {
+        if (wordIndex >= words.length) {
+            words = Arrays.copyOf(words, Math.max(words.length * 2, wordIndex + 1));
+        }
+    }
+
+    public synchronized boolean get(long block) {
+        int index = wordIndex(block);
+        return index < words.length && (words[index] & (1L << block)) != 0;
+    }
+
+    /**
+     * @return 该块之前是否未完成
+     */
+    public synchronized boolean set(long block) {
+        int index = wordIndex(block);
+        ensureCapacity(index);
+        long mask = 1L << block;
+        if ((words[index] & mask) != 0) {
+            return false;
+        }
+        words[index] |= mask;
+        cardinality++;
+        return true;
+    }
+
+    /**
+     * 把[from, to]区间内的块都标记为已完成
+     */
+    public synchronized void set(long from, long to) {
+        for (long block = from; block <= to; block++) {
+            if ((block & (BITS_PER_WORD - 1)) == 0 && block + BITS_PER_WORD - 1 <= to) {
+                int index = wordIndex(block);
+                ensureCapacity(index);
+                cardinality += BITS_PER_WORD - Long.bitCount(words[index]);
+                words[index] = -1L;
+                block += BITS_PER_WORD - 1;
+            } else {
+                set(block);
+            }
+        }
+    }
+
+    /**
+     * 查找from（包含）之后第一个未完成的块
+     */
+    public synchronized long nextClearBit(long from) {
+        int index = wordIndex(from);
+        if (index >= words.length) {
+            return from;
+        }
+        long word = ~words[index] & (-1L << from);
+        while (true) {
+            if (word != 0) {
+                return ((long) index * BITS_PER_WORD) + Long.numberOfTrailingZeros(word);
+            }
+            if (++index == words.length) {
+                return (long) index * BITS_PER_WORD;
+            }
+            word = ~words[index];
+        }
+    }
+
+    /**
+     * 查找from（包含）之后第一个已完成的块，没有时返回-1
+     */
+    public synchronized long nextSetBit(long from) {
+        int index = wordIndex(from);
+        if (index >= words.length) {
+            return -1;
+        }
+        long word = words[index] & (-1L << from);
+        while (true) {
+            if (word != 0) {
+                return ((long) index * BITS_PER_WORD) + Long.numberOfTrailingZeros(word);
+            }
+            if (++index == words.length) {
+                return -1;
+            }
+            word = words[index];
+        }
+    }
+
+    /**
+     * @return 已完成的块数
+     */
+    public synchronized long cardinality() {
+        return cardinality;
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(words, 0);
+        cardinality = 0;
+    }
+
+    /**
+     * @return 已完成的块合并后的连续区间[起始块, 结束块]，按块序号升序排列
+     */
+    public synchronized List<long[]> toRanges() {
+        List<long[]> ranges = new ArrayList<>();
+        long from = nextSetBit(0);
+        while (from >= 0) {
+            long to = nextClearBit(from) - 1;
+            ranges.add(new long[]{from, to});
+            from = nextSetBit(to + 1);
+        }
+        return ranges;
+    }
+
+}
@@ -0,0 +1,201 @@
+package com.zpj.downloader.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * 文件校验。
+ * <p>
+ * 文件按位置每次读取{@link #CHUNK_SIZE}到一个复用的缓冲区，所有算法都从这个缓冲区更新，多个算法只需要读一遍文件。
+ * 不使用mmap：映射区域在GC回收前不会解除映射，校验大文件时会耗尽32位进程的地址空间。
+ * {@link #treeHash(File, String)}把文件分成多个块在多个线程中并行计算，适合比较大文件是否一致，
+ * 结果与普通摘要不同。
+ * @author Z-P-J
+ */
+public class ChecksumUtil {
+
+    /**
+     * CRC32校验，与MessageDigest的算法名一起传入
+     */
+    public static final String CRC32 = "CRC32";
+
+    private static final int CHUNK_SIZE = 256 * 1024;
+
+    /**
+     * 树形摘要中每个叶子块的大小
+     */
+    private static final long TREE_BLOCK_SIZE = 8 * 1024 * 1024;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private ChecksumUtil() {
+
+    }
+
+    /**
+     * 读一遍文件同时计算多个摘要
+     * @param algorithms MessageDigest的算法名（MD5、SHA-1、SHA-256等）或{@link #CRC32}
+     * @return 算法名 -> 摘要，CRC32为4字节大端序
+     */
+    public static Map<String, byte[]> digest(File file, String... algorithms) throws IOException, NoSuchAlgorithmException {
+        MessageDigest[] digests = new MessageDigest[algorithms.length];
+        CRC32 crc32 = null;
+        for (int i = 0; i < algorithms.length; i++) {
+            if (CRC32.equalsIgnoreCase(algorithms[i])) {
+                crc32 = new CRC32();
+            } else {
+                digests[i] = MessageDigest.getInstance(algorithms[i]);
+            }
+        }
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            update(channel, 0, channel.size(), allocate(crc32 != null), digests, crc32);
+        } finally {
+            in.close();
+        }
+        Map<String, byte[]> result = new LinkedHashMap<>();
+        for (int i = 0; i < algorithms.length; i++) {
+            if (digests[i] != null) {
+                result.put(algorithms[i], digests[i].digest());
+            } else if (crc32 != null) {
+                long value = crc32.getValue();
+                result.put(algorithms[i], new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value});
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return 算法名 -> 小写十六进制摘要
+     */
+    public static Map<String, String> checksum(File file, String... algorithms) throws IOException, NoSuchAlgorithmException {
+        Map<String, String> result = new LinkedHashMap<>();
+        for (Map.Entry<String, byte[]> entry : digest(file, algorithms).entrySet()) {
+            result.put(entry.getKey(), toHex(entry.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * @return 小写十六进制摘要
+     */
+    public static String checksum(File file, String algorithm) throws IOException, NoSuchAlgorithmException {
+        return toHex(digest(file, algorithm).get(algorithm));
+    }
+
+    /**
+     * 并行计算树形摘要：文件按{@link #TREE_BLOCK_SIZE}分块，每块的摘要在多个线程中并行计算，
+     * 再按顺序拼接所有块的摘要计算一次摘要作为结果。
+     * @return 小写十六进制摘要
+     */
+    public static String treeHash(final File file, final String algorithm) throws IOException, NoSuchAlgorithmException {
+        MessageDigest root = MessageDigest.getInstance(algorithm);
+        final long size = file.length();
+        int blocks = (int) Math.max(1, (size + TREE_BLOCK_SIZE - 1) / TREE_BLOCK_SIZE);
+        int threads = Math.max(1, Math.min(blocks, Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<byte[]>> leaves = new ArrayList<>(blocks);
+            for (int i = 0; i < blocks; i++) {
+                final long start = i * TREE_BLOCK_SIZE;
+                leaves.add(executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        MessageDigest digest = MessageDigest.getInstance(algorithm);
+                        FileInputStream in = new FileInputStream(file);
+                        try {
+                            update(in.getChannel(), start, Math.min(start + TREE_BLOCK_SIZE, size),
+                                    allocate(false), new MessageDigest[]{digest}, null);
+                        } finally {
+                            in.close();
+                        }
+                        return digest.digest();
+                    }
+                }));
+            }
+            for (Future<byte[]> leaf : leaves) {
+                root.update(leaf.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(String.valueOf(cause));
+        } finally {
+            executor.shutdownNow();
+        }
+        return toHex(root.digest());
+    }
+
+    /**
+     * 只计算MessageDigest时使用直接缓冲区，读取时不需要经过临时缓冲区；
+     * CRC32在API 26以下只能从数组更新，这时使用堆缓冲区，所有算法直接使用它的数组
+     */
+    private static ByteBuffer allocate(boolean needArray) {
+        return needArray ? ByteBuffer.allocate(CHUNK_SIZE) : ByteBuffer.allocateDirect(CHUNK_SIZE);
+    }
+
+    private static void update(FileChannel channel, long start, long end, ByteBuffer buffer,
+                               MessageDigest[] digests, CRC32 crc32) throws IOException {
+        long position = start;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int len = channel.read(buffer, position);
+            if (len < 0) {
+                throw new IOException("unexpected end of file at " + position);
+            }
+            position += len;
+            buffer.flip();
+            if (buffer.hasArray()) {
+                byte[] array = buffer.array();
+                int offset = buffer.arrayOffset();
+                for (MessageDigest digest : digests) {
+                    if (digest != null) {
+                        digest.update(array, offset, len);
+                    }
+                }
+                if (crc32 != null) {
+                    crc32.update(array, offset, len);
+                }
+            } else {
+                for (MessageDigest digest : digests) {
+                    if (digest != null) {
+                        buffer.rewind();
+                        digest.update(buffer);
+                    }
+                }
+            }
+        }
+    }
+
+    public static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX_DIGITS[(bytes[i] >>> 4) & 0x0F];
+            chars[2 * i + 1] = HEX_DIGITS[bytes[i] & 0x0F];
+        }
+        return new String(chars);
+    }
+
+}
@@ -262,22 +262,12 @@ public class FileUtil {
         if (!file.isFile()) {
             return null;
         }
-        MessageDigest digest = null;
-        FileInputStream in = null;
-        byte[] buffer = new byte[1024];
-        int len;
         try {
-            digest = MessageDigest.getInstance("MD5");
-            in = new FileInputStream(file);
-            while ((len = in.read(buffer, 0, 1024)) != -1) {
-                digest.update(buffer, 0, len);
-            }
-            in.close();
+            return ChecksumUtil.checksum(file, "MD5");
         } catch (Exception e) {
             e.printStackTrace();
             return null;
         }
-        return bytesToHexString(digest.digest());
     }
 
     public static String getFileSliceMD5(File file) {
@@ -324,28 +314,16 @@ public class FileUtil {
 
 
     public static String getCRC32(File file) {
-        CRC32 crc32 = new CRC32();
-        // MessageDigest.get
-        FileInputStream fileInputStream = null;
         try {
-            fileInputStream = new FileInputStream(file);
-            byte[] buffer = new byte[8192];
-            int length;
-            while ((length = fileInputStream.read(buffer)) != -1) {
-                crc32.update(buffer, 0, length);
+            byte[] crc32 = ChecksumUtil.digest(file, ChecksumUtil.CRC32).get(ChecksumUtil.CRC32);
+            long value = 0;
+            for (byte b : crc32) {
+                value = (value << 8) | (b & 0xFF);
             }
-            return Long.toHexString(crc32.getValue());
+            return Long.toHexString(value);
         } catch (Exception e) {
             e.printStackTrace();
             return null;
-        } finally {
-            try {
-                if (fileInputStream != null) {
-                    fileInputStream.close();
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
         }
     }
 
@@ -3,7 +3,6 @@ package com.zpj.downloader.util;
 import android.os.Environment;
 import android.os.StatFs;
 
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -12,7 +11,6 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Locale;
 
@@ -104,23 +102,20 @@ public class Utility {
 				return null;
 			}
 
-			StringBuilder sb = new StringBuilder();
+			// 一次读完再解码，避免多字节字符被分块截断
 			FileInputStream fileInputStream = new FileInputStream(f);
-
-			BufferedInputStream ipt = new BufferedInputStream(fileInputStream);
-			
-			byte[] buf = new byte[512];
-
-			
-			while (ipt.available() > 0) {
-				int len = ipt.read(buf, 0, 512);
-				sb.append(new String(buf, 0, len, StandardCharsets.UTF_8));
+			byte[] buf = new byte[(int) f.length()];
+			int count = 0;
+			try {
+				int len;
+				while (count < buf.length && (len = fileInputStream.read(buf, count, buf.length - count)) != -1) {
+					count += len;
+				}
+			} finally {
+				fileInputStream.close();
 			}
 
-			ipt.close();
-			fileInputStream.close();
-
-			return sb.toString();
+			return new String(buf, 0, count, StandardCharsets.UTF_8);
 		} catch (Exception e) {
 			return null;
 		}
@@ -173,43 +168,11 @@ public class Utility {
 	}
 	
 	public static String checksum(String path, String algorithm) {
-		MessageDigest md = null;
-		
-		try {
-			md = MessageDigest.getInstance(algorithm);
-		} catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException(e);
-		}
-		
-		FileInputStream i = null;
-		
 		try {
-			i = new FileInputStream(path);
-		} catch (FileNotFoundException e) {
+			return ChecksumUtil.checksum(new File(path), algorithm);
+		} catch (NoSuchAlgorithmException | IOException e) {
 			throw new RuntimeException(e);
 		}
-		
-		byte[] buf = new byte[1024];
-		int len = 0;
-		
-		try {
-			while ((len = i.read(buf)) != -1) {
-				md.update(buf, 0, len);
-			}
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		
-		byte[] digest = md.digest();
-		
-		// HEX
-		StringBuilder sb = new StringBuilder();
-		for (byte b : digest) {
-			sb.append(Integer.toString((b & 0xff) + 0x100, 16).substring(1));
-		}
-		
-		return sb.toString();
-		
 	}
 
 	public static boolean checkURL(String url) {
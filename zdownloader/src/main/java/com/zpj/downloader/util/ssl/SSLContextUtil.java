@@ -35,8 +35,10 @@ import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
 
 /**
  * Created by lyy on 2017/1/11.
@@ -104,6 +106,35 @@ public class SSLContextUtil {
     return sslContext;
   }
 
+  private static volatile SSLSocketFactory sSocketFactory;
+
+  /**
+   * 所有下载连接共用的SSLSocketFactory，第一次使用时根据{@link #CA_ALIAS}、{@link #CA_PATH}创建，之后不再变化。
+   * HttpURLConnection的连接池按SSLSocketFactory区分连接，每个连接使用新的SSLSocketFactory时HTTPS长连接无法复用，
+   * 创建SSLContext本身也需要读取证书
+   */
+  public static SSLSocketFactory getSocketFactory(Context context) {
+    if (sSocketFactory == null) {
+      synchronized (SSLContextUtil.class) {
+        if (sSocketFactory == null) {
+          SSLContext sslContext = getSSLContext(context, CA_ALIAS, CA_PATH);
+          if (sslContext == null) {
+            sslContext = getDefaultSLLContext();
+          }
+          sSocketFactory = sslContext.getSocketFactory();
+        }
+      }
+    }
+    return sSocketFactory;
+  }
+
+  /**
+   * 与{@link #getDefaultSLLContext()}使用的 TrustManager 相同
+   */
+  public static X509TrustManager getDefaultTrustManager() {
+    return (X509TrustManager) trustManagers;
+  }
+
   /**
    * 创建自己的 TrustManager，这次直接信任服务器证书。这种方法具有前面所述的将应用与证书直接关联的所有弊端，但可以安全地操作。
    */
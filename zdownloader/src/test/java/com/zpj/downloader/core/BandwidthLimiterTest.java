@@ -0,0 +1,101 @@
+package com.zpj.downloader.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BandwidthLimiterTest {
+
+    private static final int RATE = 4 * 1024 * 1024;
+
+    @Test
+    public void chunkSize() {
+        assertEquals(8192, BandwidthLimiter.getChunkSize(8192, 0));
+        assertEquals(8192, BandwidthLimiter.getChunkSize(8192, -1));
+        assertEquals(8192, BandwidthLimiter.getChunkSize(8192, 10 * 1024 * 1024));
+        assertEquals(5000, BandwidthLimiter.getChunkSize(8192, 50000));
+        // 限速很低时也不小于1KB
+        assertEquals(1024, BandwidthLimiter.getChunkSize(8192, 100));
+        assertEquals(512, BandwidthLimiter.getChunkSize(512, 100));
+    }
+
+    @Test
+    public void unlimitedDoesNotBlock() {
+        BandwidthLimiter limiter = new BandwidthLimiter();
+        long start = System.nanoTime();
+        for (int i = 0; i < 100000; i++) {
+            limiter.acquire(1024 * 1024, 0);
+        }
+        assertTrue(System.nanoTime() - start < 1000000000L);
+    }
+
+    @Test
+    public void singleThreadRate() {
+        BandwidthLimiter limiter = new BandwidthLimiter();
+        long bytes = RATE / 2;
+        long elapsed = consume(limiter, bytes, RATE);
+        assertRate(bytes, elapsed, RATE);
+    }
+
+    @Test
+    public void threadsShareTheLimit() throws Exception {
+        final BandwidthLimiter limiter = new BandwidthLimiter();
+        final long bytesPerThread = RATE / 8;
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    consume(limiter, bytesPerThread, RATE);
+                }
+            }));
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertRate(bytesPerThread * threads.size(), System.nanoTime() - start, RATE);
+    }
+
+    @Test
+    public void rateChangeTakesEffectImmediately() {
+        BandwidthLimiter limiter = new BandwidthLimiter();
+        consume(limiter, RATE / 10, RATE);
+        long bytes = RATE / 8;
+        long elapsed = consume(limiter, bytes, RATE / 2);
+        assertRate(bytes, elapsed, RATE / 2);
+    }
+
+    /**
+     * 按限速时的块大小消耗bytes个字节
+     * @return 耗时（纳秒）
+     */
+    private static long consume(BandwidthLimiter limiter, long bytes, long rate) {
+        int chunk = BandwidthLimiter.getChunkSize(64 * 1024, rate);
+        long start = System.nanoTime();
+        while (bytes > 0) {
+            int len = (int) Math.min(chunk, bytes);
+            limiter.acquire(len, rate);
+            bytes -= len;
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * 实际速度不超过限制，也不会因为休眠过久而明显低于限制
+     */
+    private static void assertRate(long bytes, long elapsedNanos, long rate) {
+        double expected = (double) bytes / rate;
+        double seconds = elapsedNanos / 1e9;
+        assertTrue("elapsed " + seconds + "s, expected " + expected + "s", seconds >= expected * 0.9);
+        assertTrue("elapsed " + seconds + "s, expected " + expected + "s", seconds <= expected * 2 + 0.2);
+    }
+
+}
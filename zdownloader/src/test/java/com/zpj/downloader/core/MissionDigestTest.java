@@ -0,0 +1,131 @@
+package com.zpj.downloader.core;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+public class MissionDigestTest {
+
+    private static final int CHUNK_SIZE = 128 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private byte[] data;
+    private byte[] expected;
+
+    @Before
+    public void setUp() throws Exception {
+        data = new byte[CHUNK_SIZE * 8 + 100];
+        new Random(0).nextBytes(data);
+        expected = MessageDigest.getInstance("SHA-256").digest(data);
+    }
+
+    @Test
+    public void inOrderWritesNeedNoRead() throws Exception {
+        MissionDigest digest = new MissionDigest("SHA-256");
+        for (int offset = 0; offset < data.length; offset += CHUNK_SIZE) {
+            update(digest, offset, Math.min(CHUNK_SIZE, data.length - offset));
+        }
+        assertEquals(data.length, digest.getPosition());
+        // 文件不存在，全部数据都已经在写入时累加，不会读取文件
+        digest.fold(new File(folder.getRoot(), "missing").getPath(), data.length, Long.MAX_VALUE);
+        assertArrayEquals(expected, digest.digest());
+    }
+
+    @Test
+    public void outOfOrderAndRepeatedWritesAreAssembled() throws Exception {
+        MissionDigest digest = new MissionDigest("SHA-256");
+        int half = data.length / 2;
+        update(digest, half, data.length - half);
+        update(digest, CHUNK_SIZE, half - CHUNK_SIZE);
+        assertEquals(0, digest.getPosition());
+        // 重新下载的数据与之前的范围部分重叠
+        update(digest, 0, CHUNK_SIZE + 10);
+        update(digest, 0, CHUNK_SIZE);
+        assertEquals(data.length, digest.getPosition());
+        assertArrayEquals(expected, digest.digest());
+    }
+
+    @Test
+    public void droppedWritesAreReadBackFromFile() throws Exception {
+        File file = writeFile();
+        MissionDigest digest = new MissionDigest("SHA-256");
+        // 超出乱序缓冲区的数据被丢弃
+        byte[] large = new byte[9 * 1024 * 1024];
+        digest.update(ByteBuffer.wrap(large), data.length);
+        update(digest, CHUNK_SIZE, data.length - CHUNK_SIZE);
+        digest.fold(file.getPath(), CHUNK_SIZE, Long.MAX_VALUE);
+        assertEquals(data.length, digest.getPosition());
+        assertArrayEquals(expected, digest.digest());
+    }
+
+    @Test
+    public void invalidateDropsPendingAfterCorruptedRange() throws Exception {
+        MissionDigest digest = new MissionDigest("SHA-256");
+        byte[] corrupted = new byte[CHUNK_SIZE];
+        digest.update(ByteBuffer.wrap(corrupted), CHUNK_SIZE * 2);
+        update(digest, CHUNK_SIZE, CHUNK_SIZE);
+        digest.invalidate(CHUNK_SIZE * 2);
+        assertFalse(digest.isInvalid());
+
+        update(digest, 0, CHUNK_SIZE);
+        update(digest, CHUNK_SIZE * 2, data.length - CHUNK_SIZE * 2);
+        assertArrayEquals(expected, digest.digest());
+    }
+
+    @Test
+    public void invalidateAfterHashingPoisonsDigest() throws Exception {
+        MissionDigest digest = new MissionDigest("SHA-256");
+        update(digest, 0, CHUNK_SIZE * 2);
+        digest.invalidate(CHUNK_SIZE);
+        assertTrue(digest.isInvalid());
+    }
+
+    @Test
+    public void parseContentDigest() {
+        assertArrayEquals(new String[]{"SHA-256", "abc="},
+                MissionDigest.parseContentDigest("unknown=:xyz:, SHA-256=:abc=:"));
+        assertArrayEquals(new String[]{"SHA-512", "def="},
+                MissionDigest.parseContentDigest("sha-512=:def=:"));
+        assertNull(MissionDigest.parseContentDigest("sha-256=abc"));
+        assertNull(MissionDigest.parseContentDigest(null));
+    }
+
+    private void update(MissionDigest digest, int offset, int len) {
+        ByteBuffer buffer = ByteBuffer.wrap(data, offset, len);
+        digest.update(buffer, offset);
+        // 不改变buffer的位置，写入线程之后还要回收
+        assertEquals(offset, buffer.position());
+    }
+
+    private File writeFile() throws Exception {
+        File file = folder.newFile("mission");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+}
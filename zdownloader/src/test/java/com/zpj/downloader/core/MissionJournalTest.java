@@ -0,0 +1,230 @@
+package com.zpj.downloader.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+public class MissionJournalTest {
+
+    private static final int BLOCK_SIZE = 1024;
+    private static final long LENGTH = 10L * 1024 * 1024;
+
+    /**
+     * 头部和每条记录的长度，与MissionJournal的文件格式一致
+     */
+    private static final int HEADER_SIZE = 20;
+    private static final int RECORD_SIZE = 20;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private MissionJournal journal;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(folder.getRoot(), "mission" + MissionJournal.JOURNAL_FILE_SUFFIX_NAME);
+        journal = new MissionJournal(file);
+        journal.create(BLOCK_SIZE, LENGTH);
+    }
+
+    @After
+    public void tearDown() {
+        journal.close();
+    }
+
+    @Test
+    public void appendOnlyWritesOnSync() throws Exception {
+        journal.append(1);
+        journal.append(2);
+        assertEquals(HEADER_SIZE, file.length());
+        journal.sync(journal.mark());
+        assertEquals(HEADER_SIZE + 2 * RECORD_SIZE, file.length());
+        assertRanges(reload(), new long[]{1, 1}, new long[]{2, 2});
+    }
+
+    @Test
+    public void syncStopsAtMark() throws Exception {
+        journal.append(1);
+        long mark = journal.mark();
+        // mark之后完成的块的数据还没有落盘，不能写入日志
+        journal.append(2);
+        journal.sync(mark);
+        assertRanges(reload(), new long[]{1, 1});
+    }
+
+    @Test
+    public void recordsAfterMarkAreSyncedByNextCheckpoint() throws Exception {
+        journal.append(1);
+        long mark = journal.mark();
+        journal.append(2);
+        journal.sync(mark);
+        journal.append(3);
+        journal.sync(journal.mark());
+        // 重复同步同一个mark不会重复写入
+        journal.sync(journal.mark());
+        assertEquals(HEADER_SIZE + 3 * RECORD_SIZE, file.length());
+        assertRanges(reload(), new long[]{1, 1}, new long[]{2, 2}, new long[]{3, 3});
+    }
+
+    @Test
+    public void tornRecordIsDiscarded() throws Exception {
+        journal.append(5);
+        journal.sync(journal.mark());
+        journal.close();
+        // 模拟写到一半时崩溃
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(raf.length());
+        raf.write(new byte[RECORD_SIZE / 2]);
+        raf.close();
+
+        assertRanges(journal.load(BLOCK_SIZE, LENGTH), new long[]{5, 5});
+        assertEquals(HEADER_SIZE + RECORD_SIZE, file.length());
+        // 截断之后的追加从有效位置开始
+        journal.append(6);
+        journal.sync(journal.mark());
+        assertRanges(reload(), new long[]{5, 5}, new long[]{6, 6});
+    }
+
+    @Test
+    public void corruptedRecordStopsLoading() throws Exception {
+        journal.append(1);
+        journal.append(2);
+        journal.append(3);
+        journal.sync(journal.mark());
+        journal.close();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(HEADER_SIZE + RECORD_SIZE + 3);
+        raf.write(0x7F);
+        raf.close();
+
+        assertRanges(journal.load(BLOCK_SIZE, LENGTH), new long[]{1, 1});
+    }
+
+    @Test
+    public void mismatchedHeaderResetsJournal() throws Exception {
+        journal.append(1);
+        journal.sync(journal.mark());
+        journal.close();
+
+        assertTrue(journal.load(BLOCK_SIZE * 2, LENGTH).isEmpty());
+        assertEquals(HEADER_SIZE, file.length());
+        assertTrue(journal.load(BLOCK_SIZE * 2, LENGTH).isEmpty());
+    }
+
+    @Test
+    public void loadDropsUnsyncedRecords() throws Exception {
+        journal.append(1);
+        journal.sync(journal.mark());
+        journal.append(2);
+        // 重新加载时内存中还没写入的记录被丢弃
+        assertRanges(journal.load(BLOCK_SIZE, LENGTH), new long[]{1, 1});
+        journal.sync(journal.mark());
+        assertRanges(reload(), new long[]{1, 1});
+    }
+
+    @Test
+    public void compactMergesRecordsAndKeepsPending() throws Exception {
+        for (int i = 0; i < 1500; i++) {
+            journal.append(i);
+        }
+        long mark = journal.mark();
+        journal.append(2000);
+        journal.sync(mark);
+        assertTrue(journal.shouldCompact());
+
+        journal.compact(BLOCK_SIZE, LENGTH);
+        assertFalse(journal.shouldCompact());
+        assertEquals(HEADER_SIZE + RECORD_SIZE, file.length());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        // 合并时还没写入的记录在下一个检查点写入合并后的日志
+        journal.sync(journal.mark());
+        assertRanges(reload(), new long[]{0, 1499}, new long[]{2000, 2000});
+    }
+
+    @Test
+    public void mergeSortsAndJoinsAdjacentRanges() {
+        List<long[]> records = Arrays.asList(
+                new long[]{10, 12},
+                new long[]{0, 0},
+                new long[]{13, 13},
+                new long[]{1, 3},
+                new long[]{11, 11},
+                new long[]{20, 25},
+                new long[]{5, 5});
+        assertRanges(MissionJournal.merge(records),
+                new long[]{0, 3}, new long[]{5, 5}, new long[]{10, 13}, new long[]{20, 25});
+        // 合并不修改传入的记录
+        assertArrayEquals(new long[]{10, 12}, records.get(0));
+    }
+
+    @Test
+    public void deleteRemovesFileAndPending() throws Exception {
+        journal.append(1);
+        journal.delete();
+        assertFalse(file.exists());
+        journal.create(BLOCK_SIZE, LENGTH);
+        journal.sync(journal.mark());
+        assertTrue(reload().isEmpty());
+    }
+
+    @Test
+    public void checkpointAfterDeleteDoesNotRecreateFile() throws Exception {
+        for (int i = 0; i < 1500; i++) {
+            journal.append(i * 2);
+        }
+        long mark = journal.mark();
+        journal.sync(mark);
+        journal.append(5000);
+        assertTrue(journal.shouldCompact());
+
+        // 任务完成后删除日志，之前排队的检查点随后才执行
+        journal.delete();
+        assertFalse(journal.shouldCompact());
+        journal.sync(journal.mark());
+        journal.compact(BLOCK_SIZE, LENGTH);
+        assertFalse(file.exists());
+    }
+
+    private List<long[]> reload() throws Exception {
+        journal.close();
+        MissionJournal other = new MissionJournal(file);
+        try {
+            return other.load(BLOCK_SIZE, LENGTH);
+        } finally {
+            other.close();
+        }
+    }
+
+    private static void assertRanges(List<long[]> actual, long[]... expected) {
+        List<String> actualStrings = new ArrayList<>();
+        for (long[] range : actual) {
+            actualStrings.add(Arrays.toString(range));
+        }
+        List<String> expectedStrings = new ArrayList<>();
+        for (long[] range : expected) {
+            expectedStrings.add(Arrays.toString(range));
+        }
+        assertEquals(expectedStrings, actualStrings);
+    }
+
+}
@@ -0,0 +1,162 @@
+package com.zpj.downloader.core;
+
+import com.google.gson.Gson;
+import com.zpj.downloader.config.DownloaderConfig;
+import com.zpj.downloader.config.MissionConfig;
+import com.zpj.downloader.util.Utility;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 生成大量任务信息文件，测量启动时{@link DownloadManagerImpl#loadMissions()}并行恢复所有任务的耗时，
+ * 并与在一个线程中依次读取和恢复同样的文件比较。
+ * <p>
+ * 任务数默认10000，可以通过系统属性zdownloader.benchmark.missions修改，结果输出到标准输出。
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+public class MissionLoadBenchmark {
+
+    private static final int ROUNDS = 3;
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        DownloadManagerImpl.register(DownloaderConfig.with(RuntimeEnvironment.application));
+        dir = new File(DownloadManagerImpl.TASK_PATH);
+        dir.mkdirs();
+        deleteMissionInfoFiles();
+    }
+
+    @After
+    public void tearDown() {
+        deleteMissionInfoFiles();
+        MissionRegistry.getInstance().clear();
+    }
+
+    @Test
+    public void loadSyntheticMissions() throws Exception {
+        int count = Integer.getInteger("zdownloader.benchmark.missions", 10000);
+        List<String> uuids = createMissionInfoFiles(count);
+        DownloadManager manager = DownloadManagerImpl.getInstance();
+
+        long parallelBest = Long.MAX_VALUE;
+        long sequentialBest = Long.MAX_VALUE;
+        // 第一轮同时预热JIT和页缓存，取多轮中的最小值；每次计时前先回收上一次加载的任务，避免GC计入下一次
+        for (int round = 0; round < ROUNDS; round++) {
+            MissionRegistry.getInstance().clear();
+            System.gc();
+            long start = System.nanoTime();
+            manager.loadMissions();
+            parallelBest = Math.min(parallelBest, System.nanoTime() - start);
+            assertEquals(count, manager.getCount());
+
+            MissionRegistry.getInstance().clear();
+            System.gc();
+            start = System.nanoTime();
+            loadSequentially();
+            sequentialBest = Math.min(sequentialBest, System.nanoTime() - start);
+            assertEquals(count, manager.getCount());
+        }
+
+        manager.loadMissions();
+        List<DownloadMission> missions = manager.getMissions();
+        for (int i = 1; i < missions.size(); i++) {
+            assertTrue(missions.get(i - 1).getCreateTime() >= missions.get(i).getCreateTime());
+        }
+        for (int i = 0; i < count; i += 97) {
+            DownloadMission mission = manager.getMission(uuids.get(i));
+            assertNotNull(mission);
+            // 上次退出时正在下载的任务恢复为暂停
+            assertTrue(!mission.isRunning() && !mission.isWaiting());
+        }
+
+        System.out.println("mission load benchmark, missions=" + count);
+        print("DownloadManagerImpl.loadMissions", count, parallelBest);
+        print("sequential read + restore", count, sequentialBest);
+    }
+
+    /**
+     * 与loadMissions读取同样的文件并登记到任务列表，但在当前线程中依次读取和恢复
+     */
+    private void loadSequentially() {
+        MissionRegistry registry = MissionRegistry.getInstance();
+        registry.clear();
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<DownloadMission> missions = new ArrayList<>(files.length);
+        for (File file : files) {
+            if (!file.getName().endsWith(DownloadManagerImpl.MISSION_INFO_FILE_SUFFIX_NAME)) {
+                continue;
+            }
+            DownloadMission mission = DownloadMission.restore(Utility.readFromFile(file.getAbsolutePath()));
+            if (mission != null) {
+                missions.add(mission);
+            }
+        }
+        registry.addAll(missions);
+    }
+
+    /**
+     * 按DownloadMission保存任务信息的格式生成任务信息文件，已完成、暂停和下载中的任务各占一部分
+     * @return 所有任务的uuid
+     */
+    private List<String> createMissionInfoFiles(int count) throws Exception {
+        Gson gson = new Gson();
+        Field createTime = DownloadMission.class.getDeclaredField("createTime");
+        createTime.setAccessible(true);
+        Field status = DownloadMission.class.getDeclaredField("missionStatus");
+        status.setAccessible(true);
+        DownloadMission.MissionStatus[] statuses = {
+                DownloadMission.MissionStatus.FINISHED,
+                DownloadMission.MissionStatus.PAUSE,
+                DownloadMission.MissionStatus.RUNNING
+        };
+        List<String> uuids = new ArrayList<>(count);
+        MissionConfig config = MissionConfig.with();
+        for (int i = 0; i < count; i++) {
+            DownloadMission mission = DownloadMission.create("http://127.0.0.1/file/" + i, "file" + i + ".bin", config);
+            createTime.setLong(mission, 1000000L + i);
+            status.set(mission, statuses[i % statuses.length]);
+            Utility.writeToFile(mission.getMissionInfoFilePath(), gson.toJson(mission));
+            uuids.add(mission.getUuid());
+        }
+        return uuids;
+    }
+
+    private void deleteMissionInfoFiles() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(DownloadManagerImpl.MISSION_INFO_FILE_SUFFIX_NAME)) {
+                file.delete();
+            }
+        }
+    }
+
+    private static void print(String name, int count, long nanos) {
+        System.out.println(String.format("  %-34s %8.1f ms %8.1f us/mission",
+                name, nanos / 1e6, nanos / 1e3 / count));
+    }
+
+}
@@ -0,0 +1,156 @@
+package com.zpj.downloader.core;
+
+import com.zpj.downloader.config.DownloaderConfig;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 多个线程同时通过DownloadManagerImpl添加、开始、暂停、删除任务，另外的线程同时遍历任务列表和查询索引，
+ * 检查不会抛出ConcurrentModificationException，结束后任务列表和索引中的任务与实际保留的任务一致。
+ * <p>
+ * 添加的任务在初始化队列中等待，初始化请求投递到主线程后不会执行，测试过程中不会发出网络请求。
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+public class MissionRegistryStressTest {
+
+    private static final int WRITER_COUNT = 4;
+    private static final int READER_COUNT = 4;
+    private static final int ROUNDS = 500;
+
+    @Before
+    public void setUp() {
+        DownloadManagerImpl.register(DownloaderConfig.with(RuntimeEnvironment.application));
+        MissionRegistry.getInstance().clear();
+    }
+
+    @Test
+    public void concurrentAddStartPauseDelete() throws Exception {
+        final DownloadManager manager = DownloadManagerImpl.getInstance();
+        final Set<DownloadMission> expected = Collections.newSetFromMap(new ConcurrentHashMap<DownloadMission, Boolean>());
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final CountDownLatch writersDone = new CountDownLatch(WRITER_COUNT);
+        List<Thread> threads = new ArrayList<>();
+
+        for (int w = 0; w < WRITER_COUNT; w++) {
+            final int id = w;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(id);
+                    List<DownloadMission> kept = new ArrayList<>();
+                    try {
+                        for (int i = 0; i < ROUNDS; i++) {
+                            // 每个线程使用自己的链接，同一链接不会在线程之间去重
+                            List<String> urls = new ArrayList<>();
+                            urls.add("http://127.0.0.1/" + id + "/" + i);
+                            DownloadMission old = kept.isEmpty() ? null : kept.get(random.nextInt(kept.size()));
+                            if (old != null) {
+                                // 已有的任务再次添加时不会重复创建，而是重新开始
+                                urls.add(old.getUrl());
+                            }
+                            List<DownloadMission> missions = manager.startMissions(urls);
+                            DownloadMission mission = missions.get(0);
+                            assertSame(mission, manager.getMission(mission.getUuid()));
+                            if (old != null) {
+                                assertSame(old, missions.get(1));
+                            }
+                            switch (random.nextInt(3)) {
+                                case 0:
+                                    manager.pauseMission(mission.getUuid());
+                                    kept.add(mission);
+                                    break;
+                                case 1:
+                                    manager.deleteMission(mission);
+                                    break;
+                                default:
+                                    kept.add(mission);
+                                    break;
+                            }
+                        }
+                        expected.addAll(kept);
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    } finally {
+                        writersDone.countDown();
+                    }
+                }
+            }));
+        }
+
+        for (int r = 0; r < READER_COUNT; r++) {
+            final int id = r;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(100 + id);
+                    try {
+                        while (writing.get()) {
+                            for (DownloadMission mission : manager.getMissions()) {
+                                assertNotNull(mission);
+                            }
+                            int count = manager.getCount();
+                            if (count > 0) {
+                                // 读取期间任务可能被删除，只检查返回的任务有效
+                                try {
+                                    assertNotNull(manager.getMission(random.nextInt(count)));
+                                } catch (IndexOutOfBoundsException ignored) {
+                                }
+                            }
+                            manager.getMissionsByUrl("http://127.0.0.1/" + random.nextInt(WRITER_COUNT)
+                                    + "/" + random.nextInt(ROUNDS));
+                            manager.getDownloadSpeed();
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            }));
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        writersDone.await();
+        writing.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        if (!errors.isEmpty()) {
+            throw new AssertionError(errors.get(0));
+        }
+        List<DownloadMission> missions = manager.getMissions();
+        assertEquals(expected.size(), missions.size());
+        assertEquals(expected, new HashSet<>(missions));
+        for (int i = 1; i < missions.size(); i++) {
+            assertTrue(missions.get(i - 1).getCreateTime() >= missions.get(i).getCreateTime());
+        }
+        for (DownloadMission mission : expected) {
+            assertSame(mission, manager.getMission(mission.getUuid()));
+            assertTrue(manager.getMissionsByUrl(mission.getUrl()).contains(mission));
+        }
+    }
+
+}
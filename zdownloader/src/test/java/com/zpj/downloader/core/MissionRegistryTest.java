@@ -0,0 +1,169 @@
+package com.zpj.downloader.core;
+
+import com.zpj.downloader.config.DownloaderConfig;
+import com.zpj.downloader.config.MissionConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+public class MissionRegistryTest {
+
+    private MissionRegistry registry;
+
+    @Before
+    public void setUp() {
+        DownloadManagerImpl.register(DownloaderConfig.with(RuntimeEnvironment.application));
+        registry = MissionRegistry.getInstance();
+        registry.clear();
+    }
+
+    @After
+    public void tearDown() {
+        registry.clear();
+    }
+
+    @Test
+    public void addKeepsNewestFirst() throws Exception {
+        DownloadMission a = mission("http://127.0.0.1/a", "a", 100);
+        DownloadMission b = mission("http://127.0.0.1/b", "b", 300);
+        DownloadMission c = mission("http://127.0.0.1/c", "c", 200);
+        assertEquals(0, registry.add(a));
+        assertEquals(0, registry.add(b));
+        assertEquals(1, registry.add(c));
+        assertEquals(Arrays.asList(b, c, a), registry.snapshot());
+        // 重复登记不改变列表
+        assertEquals(1, registry.add(c));
+        assertEquals(3, registry.size());
+        assertSame(b, registry.get(0));
+    }
+
+    @Test
+    public void addAllSortsOnceAndSkipsRegistered() throws Exception {
+        DownloadMission a = mission("http://127.0.0.1/a", "a", 100);
+        DownloadMission b = mission("http://127.0.0.1/b", "b", 300);
+        DownloadMission c = mission("http://127.0.0.1/c", "c", 200);
+        registry.add(a);
+        registry.addAll(Arrays.asList(c, a, b));
+        assertEquals(Arrays.asList(b, c, a), registry.snapshot());
+        assertSame(c, registry.get(c.getUuid()));
+    }
+
+    @Test
+    public void lookupByUuidUrlAndPath() throws Exception {
+        DownloadMission a = mission("http://127.0.0.1/file", "a.bin", 100);
+        DownloadMission b = mission("http://127.0.0.1/file", "b.bin", 200);
+        registry.add(a);
+        registry.add(b);
+        assertSame(a, registry.get(a.getUuid()));
+        assertNull(registry.get("missing"));
+        assertNull(registry.get(null));
+        // 同一链接的多个任务都能查到，查询时忽略首尾空白
+        assertEquals(new HashSet<>(Arrays.asList(a, b)),
+                new HashSet<>(registry.getByUrl(" http://127.0.0.1/file ")));
+        assertTrue(registry.getByUrl("http://127.0.0.1/other").isEmpty());
+        assertTrue(registry.getByUrl(null).isEmpty());
+        assertSame(b, registry.getByPath(b.getFilePath()));
+        assertNull(registry.getByPath(null));
+    }
+
+    @Test
+    public void reindexRedirectUrl() throws Exception {
+        DownloadMission mission = mission("http://127.0.0.1/origin", "a.bin", 100);
+        registry.add(mission);
+        mission.setRedirectUrl("http://127.0.0.1/redirect1");
+        assertEquals(Collections.singletonList(mission), registry.getByUrl("http://127.0.0.1/origin"));
+        assertEquals(Collections.singletonList(mission), registry.getByUrl("http://127.0.0.1/redirect1"));
+
+        mission.setRedirectUrl("http://127.0.0.1/redirect2");
+        assertTrue(registry.getByUrl("http://127.0.0.1/redirect1").isEmpty());
+        assertEquals(Collections.singletonList(mission), registry.getByUrl("http://127.0.0.1/redirect2"));
+
+        // 重定向链接与原始链接相同时移除旧的重定向链接不能影响原始链接
+        mission.setRedirectUrl("http://127.0.0.1/origin");
+        mission.setRedirectUrl("");
+        assertEquals(Collections.singletonList(mission), registry.getByUrl("http://127.0.0.1/origin"));
+        assertTrue(registry.getByUrl("http://127.0.0.1/redirect2").isEmpty());
+    }
+
+    @Test
+    public void reindexRenamedFile() throws Exception {
+        DownloadMission mission = mission("http://127.0.0.1/file", "old.bin", 100);
+        registry.add(mission);
+        String oldPath = mission.getFilePath();
+        mission.setTaskName("new.bin");
+        assertNull(registry.getByPath(oldPath));
+        assertSame(mission, registry.getByPath(mission.getFilePath()));
+    }
+
+    @Test
+    public void reindexIgnoresUnregisteredMission() throws Exception {
+        DownloadMission mission = mission("http://127.0.0.1/file", "a.bin", 100);
+        mission.setRedirectUrl("http://127.0.0.1/redirect");
+        assertTrue(registry.getByUrl("http://127.0.0.1/redirect").isEmpty());
+        assertNull(registry.get(mission.getUuid()));
+    }
+
+    @Test
+    public void removeClearsIndices() throws Exception {
+        DownloadMission a = mission("http://127.0.0.1/file", "a.bin", 100);
+        DownloadMission b = mission("http://127.0.0.1/file", "b.bin", 200);
+        registry.add(a);
+        registry.add(b);
+        a.setRedirectUrl("http://127.0.0.1/redirect");
+
+        assertTrue(registry.remove(a));
+        assertFalse(registry.remove(a));
+        assertFalse(registry.remove(null));
+        assertEquals(Collections.singletonList(b), registry.snapshot());
+        assertNull(registry.get(a.getUuid()));
+        assertNull(registry.getByPath(a.getFilePath()));
+        assertTrue(registry.getByUrl("http://127.0.0.1/redirect").isEmpty());
+        assertEquals(Collections.singletonList(b), registry.getByUrl("http://127.0.0.1/file"));
+    }
+
+    @Test
+    public void snapshotIsStableAndReadOnly() throws Exception {
+        DownloadMission a = mission("http://127.0.0.1/a", "a", 100);
+        registry.add(a);
+        List<DownloadMission> snapshot = registry.snapshot();
+        registry.add(mission("http://127.0.0.1/b", "b", 200));
+        registry.remove(a);
+        assertEquals(Collections.singletonList(a), snapshot);
+        try {
+            snapshot.add(a);
+            throw new AssertionError("snapshot should be read-only");
+        } catch (UnsupportedOperationException ignored) {
+        }
+    }
+
+    /**
+     * 创建任务并指定创建时间，不依赖系统时钟决定顺序
+     */
+    private static DownloadMission mission(String url, String name, long createTime) throws Exception {
+        DownloadMission mission = DownloadMission.create(url, name, MissionConfig.with());
+        Field field = DownloadMission.class.getDeclaredField("createTime");
+        field.setAccessible(true);
+        field.setLong(mission, createTime);
+        return mission;
+    }
+
+}
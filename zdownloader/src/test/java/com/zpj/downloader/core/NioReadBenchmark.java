@@ -0,0 +1,170 @@
+package com.zpj.downloader.core;
+
+import com.zpj.downloader.config.DownloaderConfig;
+import com.zpj.downloader.constant.DefaultConstant;
+import com.zpj.downloader.transport.Request;
+import com.zpj.downloader.transport.Response;
+import com.zpj.downloader.transport.UrlConnectionTransport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Random;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 从本地服务器下载同一个文件，比较DownloadRunnable的两种读取方式的吞吐量：
+ * 默认的BufferedInputStream每次读取512字节再复制到写入缓冲区，
+ * 和开启NIO后通过ReadableByteChannel直接读入写入缓冲区（每次最多{@link DefaultConstant#NIO_BUFFER_SIZE}）。
+ * 两种方式都通过WriteBehind和MissionStorage写入文件，只有读取方式不同。
+ * <p>
+ * 文件大小默认32MB，可以通过系统属性zdownloader.benchmark.size（MB）修改，结果输出到标准输出。
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+public class NioReadBenchmark {
+
+    /**
+     * 与DownloadRunnable中的缓冲区大小一致
+     */
+    private static final int STREAM_BUFFER_SIZE = 512;
+
+    private static final int ROUNDS = 3;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MockWebServer server;
+
+    private byte[] content;
+
+    @Before
+    public void setUp() throws IOException {
+        DownloadManagerImpl.register(DownloaderConfig.with(RuntimeEnvironment.application));
+        int size = Integer.getInteger("zdownloader.benchmark.size", 32) * 1024 * 1024;
+        content = new byte[size];
+        new Random(0).nextBytes(content);
+        final Buffer body = new Buffer().write(content);
+        server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return new MockResponse().setBody(body.clone());
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void streamVersusChannel() throws Exception {
+        URL url = server.url("/file").url();
+        File file = folder.newFile();
+        long streamBest = Long.MAX_VALUE;
+        long channelBest = Long.MAX_VALUE;
+        // 第一轮同时预热JIT，取多轮中的最小值
+        for (int round = 0; round < ROUNDS; round++) {
+            streamBest = Math.min(streamBest, download(url, file, false));
+            assertContent(file);
+            channelBest = Math.min(channelBest, download(url, file, true));
+            assertContent(file);
+        }
+        System.out.println("nio benchmark, file=" + content.length / 1024 / 1024 + "MB");
+        print("BufferedInputStream, 512B reads", streamBest);
+        print("ReadableByteChannel, direct reads", channelBest);
+    }
+
+    /**
+     * @return 下载耗时（纳秒），包括等待数据写入文件
+     */
+    private long download(URL url, File file, boolean nio) throws IOException {
+        MissionStorage storage = new MissionStorage();
+        storage.retain(file.getPath());
+        storage.truncate(0);
+        WriteBehind.Writer writer = WriteBehind.getInstance().newWriter(storage);
+        long start = System.nanoTime();
+        Response response = new UrlConnectionTransport().execute(new Request(url)
+                .setConnectTimeout(10000)
+                .setReadTimeout(10000));
+        try {
+            assertEquals(200, response.getCode());
+            writer.begin(0);
+            long done = 0;
+            if (nio) {
+                ReadableByteChannel src = Channels.newChannel(response.getBody());
+                while (done < content.length) {
+                    int len = writer.read(src, (int) Math.min(DefaultConstant.NIO_BUFFER_SIZE, content.length - done));
+                    if (len == -1) {
+                        break;
+                    }
+                    writer.commit(len, null);
+                    done += len;
+                }
+            } else {
+                byte[] buf = new byte[STREAM_BUFFER_SIZE];
+                BufferedInputStream ipt = new BufferedInputStream(response.getBody());
+                int len;
+                while ((len = ipt.read(buf, 0, STREAM_BUFFER_SIZE)) != -1) {
+                    writer.write(buf, 0, len);
+                    done += len;
+                }
+            }
+            writer.await();
+            assertEquals(content.length, done);
+            return System.nanoTime() - start;
+        } finally {
+            response.close(true);
+            writer.close();
+            storage.release();
+        }
+    }
+
+    private void assertContent(File file) throws IOException {
+        assertEquals(content.length, file.length());
+        byte[] actual = new byte[content.length];
+        InputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            int len;
+            while (offset < actual.length && (len = in.read(actual, offset, actual.length - offset)) != -1) {
+                offset += len;
+            }
+        } finally {
+            in.close();
+        }
+        assertArrayEquals(content, actual);
+    }
+
+    private void print(String name, long nanos) {
+        System.out.println(String.format("  %-34s %8.1f ms %8.1f MB/s",
+                name, nanos / 1e6, content.length / (nanos / 1e9) / 1024 / 1024));
+    }
+
+}
@@ -0,0 +1,141 @@
+package com.zpj.downloader.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentTest {
+
+    @Test
+    public void claimStopsAtEnd() {
+        Segment segment = new Segment(0, 100, 199);
+        assertEquals(100, segment.getRemaining());
+        assertEquals(60, segment.claim(60));
+        assertEquals(160, segment.getPosition());
+        assertEquals(40, segment.claim(60));
+        assertTrue(segment.isFinished());
+        assertEquals(0, segment.claim(60));
+    }
+
+    @Test
+    public void splitKeepsHeadAndReturnsTail() {
+        Segment segment = new Segment(3, 0, 999);
+        segment.claim(100);
+        Segment tail = segment.split(100);
+        assertNotNull(tail);
+        assertEquals(3, tail.getBlock());
+        // 剩余900字节，各拿一半
+        assertEquals(100, segment.getPosition());
+        assertEquals(549, segment.getEnd());
+        assertEquals(550, tail.getPosition());
+        assertEquals(999, tail.getEnd());
+        assertEquals(segment.getRemaining(), tail.getRemaining());
+    }
+
+    @Test
+    public void splitRejectsSmallRemainder() {
+        Segment segment = new Segment(0, 0, 199);
+        assertNull(segment.split(101));
+        assertNotNull(segment.split(100));
+        assertNull(segment.split(51));
+        segment.claim(100);
+        assertTrue(segment.isFinished());
+        assertNull(segment.split(1));
+    }
+
+    @Test
+    public void claimAfterSplitOnlyCoversHead() {
+        Segment segment = new Segment(0, 0, 999);
+        segment.claim(200);
+        Segment tail = segment.split(1);
+        // 已经读到的数据超出了拆分后的范围，多出的部分属于tail，不能写入
+        assertEquals(400, segment.claim(1000));
+        assertTrue(segment.isFinished());
+        assertEquals(600, tail.getPosition());
+    }
+
+    @Test
+    public void blockFinishesWhenAllPartsFinish() {
+        Segment segment = new Segment(0, 0, 999);
+        Segment tail = segment.split(100);
+        Segment tailOfTail = tail.split(100);
+        Segment tailOfHead = segment.split(100);
+        assertNotNull(tailOfTail);
+        assertNotNull(tailOfHead);
+        assertFalse(tail.finish());
+        assertFalse(segment.finish());
+        assertFalse(tailOfHead.finish());
+        assertTrue(tailOfTail.finish());
+    }
+
+    @Test
+    public void unsplitSegmentFinishesBlock() {
+        assertTrue(new Segment(0, 0, 9).finish());
+    }
+
+    @Test
+    public void rewindCountsFailures() {
+        Segment segment = new Segment(0, 0, 99);
+        segment.claim(50);
+        assertEquals(1, segment.rewind(0));
+        assertEquals(0, segment.getPosition());
+        assertEquals(2, segment.rewind(0));
+    }
+
+    @Test
+    public void estimatedTimeWithoutProgress() {
+        Segment segment = new Segment(0, 0, 99);
+        segment.onStart();
+        assertEquals(Long.MAX_VALUE, segment.getEstimatedTime());
+    }
+
+    @Test
+    public void concurrentClaimAndSplitCoverSegmentExactlyOnce() throws Exception {
+        final long length = 64L * 1024 * 1024;
+        final Segment segment = new Segment(0, 0, length - 1);
+        final AtomicLong claimed = new AtomicLong();
+        final AtomicBoolean done = new AtomicBoolean();
+        final List<Segment> tails = new ArrayList<>();
+
+        Thread downloader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int len;
+                while ((len = segment.claim(1024)) > 0) {
+                    claimed.addAndGet(len);
+                }
+                done.set(true);
+            }
+        });
+        downloader.start();
+        while (!done.get()) {
+            Segment tail = segment.split(4096);
+            if (tail != null) {
+                tails.add(tail);
+            }
+        }
+        downloader.join();
+
+        long total = claimed.get();
+        long expectedStart = segment.getEnd() + 1;
+        for (int i = tails.size() - 1; i >= 0; i--) {
+            // 后拆分出的片段位于先拆分出的片段之前，依次首尾相接
+            Segment tail = tails.get(i);
+            assertEquals(expectedStart, tail.getPosition());
+            total += tail.getRemaining();
+            expectedStart = tail.getEnd() + 1;
+        }
+        assertEquals(length, expectedStart);
+        assertEquals(length, total);
+    }
+
+}
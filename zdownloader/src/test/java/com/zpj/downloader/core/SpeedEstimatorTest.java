@@ -0,0 +1,99 @@
+package com.zpj.downloader.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SpeedEstimatorTest {
+
+    @Test
+    public void emptyEstimator() {
+        SpeedEstimator estimator = new SpeedEstimator();
+        assertEquals(0, estimator.getSampleCount());
+        assertEquals(0, estimator.getInstantSpeed());
+        assertEquals(0, estimator.getSmoothedSpeed());
+        assertEquals(0, estimator.getWindowSpeed());
+        assertEquals(-1, estimator.getEstimatedTime(1000));
+        assertEquals(0, estimator.getEstimatedTime(0));
+    }
+
+    @Test
+    public void instantSpeedUsesActualElapsedTime() {
+        SpeedEstimator estimator = new SpeedEstimator();
+        estimator.addSample(1500, 1500);
+        assertEquals(1000, estimator.getInstantSpeed());
+        estimator.addSample(1000, 500);
+        assertEquals(2000, estimator.getInstantSpeed());
+    }
+
+    @Test
+    public void smoothedSpeedIsEwma() {
+        SpeedEstimator estimator = new SpeedEstimator();
+        estimator.addSample(1000, 1000);
+        assertEquals(1000, estimator.getSmoothedSpeed());
+        estimator.addSample(2000, 1000);
+        // 0.3 * 2000 + 0.7 * 1000
+        assertEquals(1300, estimator.getSmoothedSpeed());
+        estimator.addSample(0, 1000);
+        // 0.3 * 0 + 0.7 * 1300
+        assertEquals(910, estimator.getSmoothedSpeed(), 1);
+        assertEquals(0, estimator.getInstantSpeed());
+    }
+
+    @Test
+    public void windowKeepsLatestSamples() {
+        SpeedEstimator estimator = new SpeedEstimator();
+        for (int i = 1; i <= SpeedEstimator.WINDOW_SIZE + 5; i++) {
+            estimator.addSample(i * 1000, 1000);
+        }
+        assertEquals(SpeedEstimator.WINDOW_SIZE, estimator.getSampleCount());
+        // 窗口内为6..15
+        assertEquals(10500, estimator.getWindowSpeed());
+        assertEquals(14500, estimator.getWindowSpeed(2));
+        assertEquals(15000, estimator.getWindowSpeed(1));
+        assertEquals(10500, estimator.getWindowSpeed(100));
+    }
+
+    @Test
+    public void windowSpeedWeightsByTime() {
+        SpeedEstimator estimator = new SpeedEstimator();
+        estimator.addSample(1000, 1000);
+        estimator.addSample(4000, 3000);
+        assertEquals(1250, estimator.getWindowSpeed());
+    }
+
+    @Test
+    public void invalidSamplesAreIgnoredOrClamped() {
+        SpeedEstimator estimator = new SpeedEstimator();
+        estimator.addSample(1000, 0);
+        estimator.addSample(1000, -5);
+        assertEquals(0, estimator.getSampleCount());
+        estimator.addSample(-100, 1000);
+        assertEquals(1, estimator.getSampleCount());
+        assertEquals(0, estimator.getInstantSpeed());
+    }
+
+    @Test
+    public void estimatedTime() {
+        SpeedEstimator estimator = new SpeedEstimator();
+        estimator.addSample(2048, 1000);
+        assertEquals(5000, estimator.getEstimatedTime(10240));
+        assertEquals(500, SpeedEstimator.estimateTime(1000, 2000));
+        assertEquals(-1, SpeedEstimator.estimateTime(1000, 0));
+        assertEquals(0, SpeedEstimator.estimateTime(-1, 0));
+    }
+
+    @Test
+    public void reset() {
+        SpeedEstimator estimator = new SpeedEstimator();
+        estimator.addSample(1000, 1000);
+        estimator.reset();
+        assertEquals(0, estimator.getSampleCount());
+        assertEquals(0, estimator.getSmoothedSpeed());
+        estimator.addSample(3000, 1000);
+        // 重置后EWMA从新的第一个采样开始
+        assertEquals(3000, estimator.getSmoothedSpeed());
+        assertEquals(3000, estimator.getWindowSpeed());
+    }
+
+}
@@ -0,0 +1,215 @@
+package com.zpj.downloader.transport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 在本地服务器上并发下载同一文件的多个块，比较HTTP/2（h2c，prior knowledge）和HTTP/1.1建立的连接数和吞吐量
+ */
+public class OkHttpTransportTest {
+
+    private static final int FILE_SIZE = 8 * 1024 * 1024;
+    private static final int BLOCK_SIZE = 256 * 1024;
+    private static final int THREAD_COUNT = 8;
+
+    private static final byte[] FILE = new byte[FILE_SIZE];
+
+    static {
+        new Random(0).nextBytes(FILE);
+    }
+
+    private MockWebServer server;
+
+    /**
+     * 服务器上新建的连接数：每个连接上的第一个请求序号为0
+     */
+    private final AtomicInteger connections = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if (request.getSequenceNumber() == 0) {
+                    connections.incrementAndGet();
+                }
+                String range = request.getHeader("Range");
+                if (range == null) {
+                    return new MockResponse().setBody(new Buffer().write(FILE));
+                }
+                String[] bounds = range.substring("bytes=".length()).split("-");
+                int start = Integer.parseInt(bounds[0]);
+                int end = Math.min(Integer.parseInt(bounds[1]), FILE_SIZE - 1);
+                return new MockResponse()
+                        .setResponseCode(206)
+                        .setHeader("Content-Range", "bytes " + start + "-" + end + "/" + FILE_SIZE)
+                        .setBody(new Buffer().write(FILE, start, end - start + 1));
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void http2MultiplexesBlocksOverOneConnection() throws Exception {
+        server.setProtocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE));
+        server.start();
+        OkHttpTransport transport = new OkHttpTransport(new OkHttpClient.Builder()
+                .protocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE))
+                .build());
+
+        Result result = download(transport);
+        System.out.println("h2: " + result);
+
+        assertEquals(1, connections.get());
+        // 第一个请求建立连接，之后的请求都复用该连接
+        assertEquals(FILE_SIZE / BLOCK_SIZE, result.reused);
+        assertEquals(1, transport.getConnectionCount());
+    }
+
+    @Test
+    public void http1OpensOneConnectionPerConcurrentBlock() throws Exception {
+        server.setProtocols(Collections.singletonList(Protocol.HTTP_1_1));
+        server.start();
+        OkHttpTransport transport = new OkHttpTransport(new OkHttpClient.Builder()
+                .protocols(Collections.singletonList(Protocol.HTTP_1_1))
+                .build());
+
+        Result result = download(transport);
+        System.out.println("http/1.1: " + result);
+
+        assertTrue(connections.get() > 1);
+        assertTrue(connections.get() <= THREAD_COUNT + 1);
+        assertEquals(FILE_SIZE / BLOCK_SIZE + 1 - connections.get(), result.reused);
+    }
+
+    @Test
+    public void defaultsToIdentityEncoding() throws Exception {
+        server.start();
+        Response response = new OkHttpTransport(new OkHttpClient()).execute(new Request(server.url("/file").url()));
+        try {
+            assertEquals(200, response.getCode());
+            assertEquals(FILE_SIZE, read(response).length);
+        } finally {
+            response.close(true);
+        }
+        assertEquals("identity", server.takeRequest().getHeader("Accept-Encoding"));
+    }
+
+    /**
+     * 先用一个请求建立连接，再由多个线程并发下载所有块
+     */
+    private Result download(final OkHttpTransport transport) throws Exception {
+        final URL url = server.url("/file").url();
+        int reused = 0;
+        Response warmUp = transport.execute(new Request(url).setHeader("Range", "bytes=0-0"));
+        read(warmUp);
+        warmUp.close(true);
+
+        final byte[] file = new byte[FILE_SIZE];
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        long startTime = System.nanoTime();
+        try {
+            List<Future<Boolean>> futures = new ArrayList<>();
+            for (int i = 0; i < FILE_SIZE / BLOCK_SIZE; i++) {
+                final int start = i * BLOCK_SIZE;
+                futures.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        Response response = transport.execute(new Request(url)
+                                .setConnectTimeout(10000)
+                                .setReadTimeout(10000)
+                                .setHeader("Range", "bytes=" + start + "-" + (start + BLOCK_SIZE - 1)));
+                        try {
+                            assertEquals(206, response.getCode());
+                            byte[] block = read(response);
+                            System.arraycopy(block, 0, file, start, block.length);
+                            return response.isConnectionReused();
+                        } finally {
+                            response.close(true);
+                        }
+                    }
+                }));
+            }
+            for (Future<Boolean> future : futures) {
+                if (future.get(30, TimeUnit.SECONDS)) {
+                    reused++;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        long elapsed = System.nanoTime() - startTime;
+        assertArrayEquals(FILE, file);
+        return new Result(connections.get(), reused, elapsed);
+    }
+
+    private static byte[] read(Response response) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = response.getBody();
+        byte[] buf = new byte[8192];
+        int len;
+        while ((len = in.read(buf)) != -1) {
+            out.write(buf, 0, len);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    private static class Result {
+
+        private final int connections;
+        private final int reused;
+        private final long elapsedNanos;
+
+        private Result(int connections, int reused, long elapsedNanos) {
+            this.connections = connections;
+            this.reused = reused;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = elapsedNanos / 1e9;
+            return Arrays.toString(new String[]{
+                    "connections=" + connections,
+                    "reused=" + reused,
+                    String.format("throughput=%.1f MB/s", FILE_SIZE / seconds / 1024 / 1024)
+            });
+        }
+    }
+
+}
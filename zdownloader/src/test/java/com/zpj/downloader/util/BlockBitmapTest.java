@@ -0,0 +1,121 @@
+package com.zpj.downloader.util;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BlockBitmapTest {
+
+    @Test
+    public void setAndGet() {
+        BlockBitmap bitmap = new BlockBitmap(100);
+        assertFalse(bitmap.get(5));
+        assertTrue(bitmap.set(5));
+        assertFalse(bitmap.set(5));
+        assertTrue(bitmap.get(5));
+        assertFalse(bitmap.get(4));
+        assertFalse(bitmap.get(6));
+        assertEquals(1, bitmap.cardinality());
+    }
+
+    @Test
+    public void growsBeyondInitialCapacity() {
+        BlockBitmap bitmap = new BlockBitmap(1);
+        assertFalse(bitmap.get(10000));
+        assertTrue(bitmap.set(10000));
+        assertTrue(bitmap.get(10000));
+        assertEquals(1, bitmap.cardinality());
+        assertEquals(0, bitmap.nextClearBit(0));
+        assertEquals(10000, bitmap.nextSetBit(0));
+        assertEquals(10001, bitmap.nextClearBit(10000));
+    }
+
+    @Test
+    public void setRangeFillsWholeWordsAndCountsOnce() {
+        BlockBitmap bitmap = new BlockBitmap(1024);
+        bitmap.set(70);
+        bitmap.set(3, 300);
+        assertEquals(298, bitmap.cardinality());
+        assertFalse(bitmap.get(2));
+        assertTrue(bitmap.get(3));
+        assertTrue(bitmap.get(64));
+        assertTrue(bitmap.get(300));
+        assertFalse(bitmap.get(301));
+        assertEquals(301, bitmap.nextClearBit(3));
+    }
+
+    @Test
+    public void nextBitsAtWordBoundaries() {
+        BlockBitmap bitmap = new BlockBitmap(256);
+        bitmap.set(0, 63);
+        assertEquals(64, bitmap.nextClearBit(0));
+        assertEquals(-1, bitmap.nextSetBit(64));
+        bitmap.set(127);
+        assertEquals(127, bitmap.nextSetBit(64));
+        assertEquals(128, bitmap.nextClearBit(127));
+        // 所有块都已完成时返回位图之后的位置
+        bitmap.set(0, 255);
+        assertEquals(256, bitmap.nextClearBit(0));
+    }
+
+    @Test
+    public void toRangesMergesConsecutiveBlocks() {
+        BlockBitmap bitmap = new BlockBitmap(200);
+        bitmap.set(0, 9);
+        bitmap.set(10);
+        bitmap.set(63, 64);
+        bitmap.set(199);
+        List<long[]> ranges = bitmap.toRanges();
+        assertEquals(3, ranges.size());
+        assertArrayEquals(new long[]{0, 10}, ranges.get(0));
+        assertArrayEquals(new long[]{63, 64}, ranges.get(1));
+        assertArrayEquals(new long[]{199, 199}, ranges.get(2));
+    }
+
+    @Test
+    public void clear() {
+        BlockBitmap bitmap = new BlockBitmap(100);
+        bitmap.set(0, 99);
+        bitmap.clear();
+        assertEquals(0, bitmap.cardinality());
+        assertEquals(-1, bitmap.nextSetBit(0));
+        assertTrue(bitmap.toRanges().isEmpty());
+    }
+
+    @Test
+    public void matchesBitSet() {
+        Random random = new Random(0);
+        int blocks = 5000;
+        BlockBitmap bitmap = new BlockBitmap(blocks);
+        BitSet expected = new BitSet(blocks);
+        for (int i = 0; i < 2000; i++) {
+            int from = random.nextInt(blocks);
+            if (random.nextInt(4) == 0) {
+                int to = Math.min(blocks - 1, from + random.nextInt(200));
+                bitmap.set(from, to);
+                expected.set(from, to + 1);
+            } else {
+                assertEquals(!expected.get(from), bitmap.set(from));
+                expected.set(from);
+            }
+            int probe = random.nextInt(blocks);
+            assertEquals(expected.get(probe), bitmap.get(probe));
+            assertEquals(expected.nextClearBit(probe), bitmap.nextClearBit(probe));
+            assertEquals(expected.nextSetBit(probe), bitmap.nextSetBit(probe));
+        }
+        assertEquals(expected.cardinality(), bitmap.cardinality());
+        BitSet fromRanges = new BitSet(blocks);
+        for (long[] range : bitmap.toRanges()) {
+            fromRanges.set((int) range[0], (int) range[1] + 1);
+        }
+        assertEquals(expected, fromRanges);
+    }
+
+}
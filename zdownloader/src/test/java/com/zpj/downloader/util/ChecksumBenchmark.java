@@ -0,0 +1,89 @@
+package com.zpj.downloader.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 比较ChecksumUtil和改用它之前每次读取1KB的FileInputStream实现计算同一文件多个摘要的耗时。
+ * 旧实现每个算法读一遍文件，ChecksumUtil读一遍文件同时计算所有算法。
+ * <p>
+ * 文件大小默认64MB，可以通过系统属性zdownloader.benchmark.size（MB）修改，结果输出到标准输出。
+ */
+public class ChecksumBenchmark {
+
+    private static final String[] ALGORITHMS = {"MD5", "SHA-1", "SHA-256"};
+
+    private static final int ROUNDS = 3;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void checksumVersusStreamHelpers() throws Exception {
+        long size = Long.getLong("zdownloader.benchmark.size", 64) * 1024 * 1024;
+        File file = ChecksumUtilTest.createFile(folder.newFile(), size);
+
+        Map<String, String> expected = null;
+        long streamBest = Long.MAX_VALUE;
+        long streamCrcBest = Long.MAX_VALUE;
+        long singlePassBest = Long.MAX_VALUE;
+        long singlePassCrcBest = Long.MAX_VALUE;
+        long treeBest = Long.MAX_VALUE;
+        // 第一轮同时预热JIT和页缓存，取多轮中的最小值
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            String[] stream = new String[ALGORITHMS.length];
+            for (int i = 0; i < ALGORITHMS.length; i++) {
+                stream[i] = ChecksumUtilTest.streamChecksum(file, ALGORITHMS[i]);
+            }
+            streamBest = Math.min(streamBest, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            String streamCrc = ChecksumUtilTest.streamCrc32(file);
+            streamCrcBest = Math.min(streamCrcBest, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            Map<String, String> result = ChecksumUtil.checksum(file, ALGORITHMS);
+            singlePassBest = Math.min(singlePassBest, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            String crc = ChecksumUtil.checksum(file, ChecksumUtil.CRC32);
+            singlePassCrcBest = Math.min(singlePassCrcBest, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            ChecksumUtil.treeHash(file, "SHA-256");
+            treeBest = Math.min(treeBest, System.nanoTime() - start);
+
+            for (int i = 0; i < ALGORITHMS.length; i++) {
+                assertEquals(stream[i], result.get(ALGORITHMS[i]));
+            }
+            assertEquals(streamCrc, crc);
+            if (expected != null) {
+                assertEquals(expected, result);
+            }
+            expected = result;
+        }
+
+        System.out.println("checksum benchmark, file=" + size / 1024 / 1024 + "MB");
+        print("1KB stream, MD5+SHA-1+SHA-256", size * ALGORITHMS.length, streamBest);
+        print("ChecksumUtil, MD5+SHA-1+SHA-256", size * ALGORITHMS.length, singlePassBest);
+        print("8KB stream, CRC32", size, streamCrcBest);
+        print("ChecksumUtil, CRC32", size, singlePassCrcBest);
+        print("ChecksumUtil.treeHash, SHA-256", size, treeBest);
+    }
+
+    /**
+     * @param bytes 所有算法处理的总字节数
+     */
+    private static void print(String name, long bytes, long nanos) {
+        System.out.println(String.format("  %-34s %8.1f ms %8.1f MB/s",
+                name, nanos / 1e6, bytes / (nanos / 1e9) / 1024 / 1024));
+    }
+
+}
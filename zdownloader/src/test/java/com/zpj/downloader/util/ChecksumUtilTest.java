@@ -0,0 +1,195 @@
+package com.zpj.downloader.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ChecksumUtilTest {
+
+    private static final int TREE_BLOCK_SIZE = 8 * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void emptyFile() throws Exception {
+        File file = createFile(0);
+        assertEquals("d41d8cd98f00b204e9800998ecf8427e", ChecksumUtil.checksum(file, "MD5"));
+        assertEquals("00000000", ChecksumUtil.checksum(file, ChecksumUtil.CRC32));
+    }
+
+    @Test
+    public void knownValues() throws Exception {
+        File file = folder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write("abc".getBytes("US-ASCII"));
+        out.close();
+        assertEquals("900150983cd24fb0d6963f7d28e17f72", ChecksumUtil.checksum(file, "MD5"));
+        assertEquals("a9993e364706816aba3e25717850c26c9cd0d89d", ChecksumUtil.checksum(file, "SHA-1"));
+        assertEquals("352441c2", ChecksumUtil.checksum(file, ChecksumUtil.CRC32));
+    }
+
+    @Test
+    public void matchesStreamDigestAcrossChunkBoundaries() throws Exception {
+        // 小于一个缓冲区、恰好整数个缓冲区和不对齐的长度
+        for (int size : new int[]{1, 1023, 256 * 1024, 3 * 256 * 1024 + 123}) {
+            File file = createFile(size);
+            for (String algorithm : new String[]{"MD5", "SHA-1", "SHA-256"}) {
+                assertEquals(algorithm + " size=" + size,
+                        streamChecksum(file, algorithm), ChecksumUtil.checksum(file, algorithm));
+            }
+            assertEquals("CRC32 size=" + size, streamCrc32(file), ChecksumUtil.checksum(file, ChecksumUtil.CRC32));
+        }
+    }
+
+    @Test
+    public void multipleAlgorithmsInOnePass() throws Exception {
+        File file = createFile(1024 * 1024 + 7);
+        // 带CRC32时使用堆缓冲区，其他算法也从同一个数组更新
+        Map<String, String> result = ChecksumUtil.checksum(file, "SHA-256", ChecksumUtil.CRC32, "MD5");
+        assertEquals(Arrays.asList("SHA-256", ChecksumUtil.CRC32, "MD5"), Arrays.asList(result.keySet().toArray()));
+        assertEquals(streamChecksum(file, "SHA-256"), result.get("SHA-256"));
+        assertEquals(streamChecksum(file, "MD5"), result.get("MD5"));
+        assertEquals(streamCrc32(file), result.get(ChecksumUtil.CRC32));
+    }
+
+    @Test
+    public void crc32IsBigEndian() throws Exception {
+        File file = createFile(5000);
+        CRC32 crc32 = new CRC32();
+        byte[] bytes = readAll(file);
+        crc32.update(bytes, 0, bytes.length);
+        long value = crc32.getValue();
+        assertArrayEquals(new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value},
+                ChecksumUtil.digest(file, ChecksumUtil.CRC32).get(ChecksumUtil.CRC32));
+    }
+
+    @Test
+    public void treeHashDigestsLeafDigests() throws Exception {
+        File file = createFile(2 * TREE_BLOCK_SIZE + 4097);
+        byte[] bytes = readAll(file);
+        MessageDigest root = MessageDigest.getInstance("SHA-256");
+        for (int start = 0; start < bytes.length; start += TREE_BLOCK_SIZE) {
+            MessageDigest leaf = MessageDigest.getInstance("SHA-256");
+            leaf.update(bytes, start, Math.min(TREE_BLOCK_SIZE, bytes.length - start));
+            root.update(leaf.digest());
+        }
+        assertEquals(ChecksumUtil.toHex(root.digest()), ChecksumUtil.treeHash(file, "SHA-256"));
+    }
+
+    @Test
+    public void treeHashOfSmallFileHasOneLeaf() throws Exception {
+        File file = createFile(100);
+        MessageDigest root = MessageDigest.getInstance("MD5");
+        root.update(MessageDigest.getInstance("MD5").digest(readAll(file)));
+        assertEquals(ChecksumUtil.toHex(root.digest()), ChecksumUtil.treeHash(file, "MD5"));
+    }
+
+    @Test(expected = NoSuchAlgorithmException.class)
+    public void unknownAlgorithm() throws Exception {
+        ChecksumUtil.checksum(createFile(10), "NO-SUCH-ALGORITHM");
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void missingFile() throws Exception {
+        ChecksumUtil.checksum(new File(folder.getRoot(), "missing"), "MD5");
+    }
+
+    @Test
+    public void toHex() {
+        assertEquals("", ChecksumUtil.toHex(new byte[0]));
+        assertEquals("00017f80ff", ChecksumUtil.toHex(new byte[]{0, 1, 127, (byte) 128, (byte) 255}));
+    }
+
+    private File createFile(int size) throws IOException {
+        return createFile(folder.newFile(), size);
+    }
+
+    static File createFile(File file, long size) throws IOException {
+        Random random = new Random(size);
+        byte[] buffer = new byte[64 * 1024];
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            while (size > 0) {
+                random.nextBytes(buffer);
+                int len = (int) Math.min(buffer.length, size);
+                out.write(buffer, 0, len);
+                size -= len;
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * 改用ChecksumUtil之前的实现：FileInputStream每次读取1KB
+     */
+    static String streamChecksum(File file, String algorithm) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance(algorithm);
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[1024];
+            int len;
+            while ((len = in.read(buf)) != -1) {
+                digest.update(buf, 0, len);
+            }
+        } finally {
+            in.close();
+        }
+        return ChecksumUtil.toHex(digest.digest());
+    }
+
+    /**
+     * 改用ChecksumUtil之前的实现：FileInputStream每次读取8KB
+     */
+    static String streamCrc32(File file) throws IOException {
+        CRC32 crc32 = new CRC32();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[8192];
+            int len;
+            while ((len = in.read(buf)) != -1) {
+                crc32.update(buf, 0, len);
+            }
+        } finally {
+            in.close();
+        }
+        return String.format("%08x", crc32.getValue());
+    }
+
+    private static byte[] readAll(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < bytes.length) {
+                int len = in.read(bytes, offset, bytes.length - offset);
+                if (len < 0) {
+                    throw new IOException("unexpected end of file");
+                }
+                offset += len;
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+}